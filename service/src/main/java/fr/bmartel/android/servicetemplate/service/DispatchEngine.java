@@ -0,0 +1,90 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Fan-out engine : each listener has its own bounded queue (see {@link ListenerChannel}) drained in parallel by a pool of workers.
+ * A slow or dead client only delays / affects its own channel. Channels of interactive and bulk listeners are drained in separate
+ * lanes (see {@link LaneScheduler}).
+ *
+ * @author Bertrand Martel
+ */
+public class DispatchEngine {
+
+    /**
+     * default max number of pending values per listener
+     */
+    public final static int DEFAULT_CHANNEL_CAPACITY = 64;
+
+    /**
+     * workers (delayed drains are used for rate limited and debounced channels)
+     */
+    private LaneScheduler scheduler = null;
+
+    private int channelCapacity;
+
+    private ServiceMetrics metrics;
+
+    public DispatchEngine(int interactiveWorkers, int bulkWorkers, int channelCapacity, ServiceMetrics metrics) {
+
+        this.channelCapacity = channelCapacity;
+        this.metrics = metrics;
+
+        scheduler = new LaneScheduler(interactiveWorkers, bulkWorkers);
+    }
+
+    public DispatchEngine(ServiceMetrics metrics) {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                DEFAULT_CHANNEL_CAPACITY, metrics);
+    }
+
+    /**
+     * create a new channel for a listener
+     *
+     * @param pid      process id of listener
+     * @param listener remote listener
+     * @param options  delivery options
+     * @return channel
+     */
+    public ListenerChannel createChannel(int pid, IPropertyListener listener, SubscriptionOptions options) {
+        return new ListenerChannel(pid, listener, options, channelCapacity, scheduler, metrics);
+    }
+
+    /**
+     * @return number of channel drains waiting for a worker
+     */
+    public int getPendingDrains() {
+        return scheduler.getPendingCount();
+    }
+
+    /**
+     * stop all workers
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Scheduler with two lanes : interactive and bulk
+ * <p/>
+ * Every worker takes interactive tasks first. Bulk workers run at background priority, interactive workers are reserved to
+ * interactive lane and only steal bulk tasks while another interactive worker stays idle, so that a saturated bulk lane
+ * delays an interactive task by one bulk task at most
+ *
+ * @author Bertrand Martel
+ */
+public class LaneScheduler {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * signaled when a task is available for interactive workers
+     */
+    private final Condition interactiveAvailable = lock.newCondition();
+
+    /**
+     * signaled when a task is available for bulk workers
+     */
+    private final Condition bulkAvailable = lock.newCondition();
+
+    private final ArrayDeque<Runnable> interactiveLane = new ArrayDeque<>();
+
+    private final ArrayDeque<Runnable> bulkLane = new ArrayDeque<>();
+
+    /**
+     * number of interactive / bulk workers waiting for a task (guarded by lock)
+     */
+    private int idleInteractive = 0;
+
+    private int idleBulk = 0;
+
+    private boolean shutdown = false;
+
+    private final Thread[] workers;
+
+    /**
+     * timer used to submit delayed tasks in their lane
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param interactiveWorkers number of workers reserved to interactive lane
+     * @param bulkWorkers        number of background workers
+     */
+    public LaneScheduler(int interactiveWorkers, int bulkWorkers) {
+
+        workers = new Thread[interactiveWorkers + bulkWorkers];
+
+        for (int i = 0; i < workers.length; i++) {
+            final boolean interactive = i < interactiveWorkers;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker(interactive);
+                }
+            }, (interactive ? "dispatch-interactive-" : "dispatch-bulk-") + i);
+            workers[i].start();
+        }
+
+        timer = new ScheduledThreadPoolExecutor(1);
+        timer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * submit a task in a lane
+     *
+     * @param task     task to run
+     * @param priority SubscriptionOptions.PRIORITY_INTERACTIVE or PRIORITY_BULK
+     * @return false if scheduler is shut down (task will never run)
+     */
+    public boolean execute(Runnable task, int priority) {
+
+        lock.lock();
+        try {
+            if (shutdown)
+                return false;
+
+            if (priority == SubscriptionOptions.PRIORITY_BULK) {
+                bulkLane.add(task);
+                if (idleBulk > 0)
+                    bulkAvailable.signal();
+                else if (idleInteractive > 1)
+                    interactiveAvailable.signal();
+            } else {
+                interactiveLane.add(task);
+                if (idleInteractive > 0)
+                    interactiveAvailable.signal();
+                else
+                    bulkAvailable.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * submit a task in a lane after a delay
+     *
+     * @param task     task to run
+     * @param priority SubscriptionOptions.PRIORITY_INTERACTIVE or PRIORITY_BULK
+     * @param delay    delay in ms
+     * @return false if scheduler is shut down (task will never run)
+     */
+    public boolean schedule(final Runnable task, final int priority, long delay) {
+
+        //a late call from a binder thread may come after shutdown
+        if (timer.isShutdown())
+            return false;
+
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execute(task, priority);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void runWorker(boolean interactive) {
+
+        Process.setThreadPriority(interactive ? Process.THREAD_PRIORITY_FOREGROUND : Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (true) {
+
+            Runnable task;
+
+            lock.lock();
+            try {
+                while ((task = poll(interactive)) == null) {
+
+                    if (shutdown)
+                        return;
+
+                    if (interactive) {
+                        idleInteractive++;
+                        interactiveAvailable.awaitUninterruptibly();
+                        idleInteractive--;
+                    } else {
+                        idleBulk++;
+                        bulkAvailable.awaitUninterruptibly();
+                        idleBulk--;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * take next task for a worker (must be called with lock held)
+     *
+     * @param interactive true for an interactive worker
+     * @return task or null if none available for this worker
+     */
+    private Runnable poll(boolean interactive) {
+
+        Runnable task = interactiveLane.poll();
+
+        if (task != null)
+            return task;
+
+        //one interactive worker always stays available for interactive lane
+        if (interactive && idleInteractive == 0)
+            return null;
+
+        return bulkLane.poll();
+    }
+
+    /**
+     * @return number of tasks waiting for a worker
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return interactiveLane.size() + bulkLane.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * stop all workers : pending tasks are discarded
+     */
+    public void shutdown() {
+
+        timer.shutdownNow();
+
+        lock.lock();
+        try {
+            shutdown = true;
+            interactiveLane.clear();
+            bulkLane.clear();
+            interactiveAvailable.signalAll();
+            bulkAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
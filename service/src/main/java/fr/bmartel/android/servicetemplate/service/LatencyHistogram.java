@@ -0,0 +1,169 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import fr.bmartel.android.servicetemplate.servicelib.MetricsKeys;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets (HDR-style) : each power of 2 is split in 8 linear sub-buckets,
+ * so a value is recorded with a relative error below 12.5%
+ * <p/>
+ * Recording is allocation free and can be called concurrently from any thread
+ *
+ * @author Bertrand Martel
+ */
+public class LatencyHistogram {
+
+    /**
+     * number of bits of sub-bucket index
+     */
+    private final static int SUB_BUCKET_BITS = 3;
+
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final static int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * record a value
+     *
+     * @param value latency in ns (negative values are recorded as 0)
+     */
+    public void record(long value) {
+
+        if (value < 0)
+            value = 0;
+
+        buckets.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    private static int getIndex(long value) {
+
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @param index bucket index
+     * @return highest value recorded in a bucket
+     */
+    private static long getUpperBound(int index) {
+
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lower = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * get value at a percentile. Buckets are read one by one so result is approximate while values are being recorded
+     *
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of bucket holding the percentile (0 if nothing has been recorded)
+     */
+    public long getPercentile(double percentile) {
+
+        long total = count.get();
+
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMean() {
+        long total = count.get();
+        return (total == 0) ? 0 : sum.get() / total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return summary of histogram
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(MetricsKeys.COUNT, getCount());
+        bundle.putLong(MetricsKeys.MEAN, getMean());
+        bundle.putLong(MetricsKeys.P50, getPercentile(50));
+        bundle.putLong(MetricsKeys.P90, getPercentile(90));
+        bundle.putLong(MetricsKeys.P99, getPercentile(99));
+        bundle.putLong(MetricsKeys.MAX, getMax());
+        return bundle;
+    }
+
+    /**
+     * print summary of histogram in microseconds
+     *
+     * @param writer output
+     * @param name   histogram name
+     */
+    public void dump(PrintWriter writer, String name) {
+        writer.println(name + " : count=" + getCount() + " mean=" + getMean() / 1000 + "us p50=" + getPercentile(50) / 1000 +
+                "us p90=" + getPercentile(90) / 1000 + "us p99=" + getPercentile(99) / 1000 + "us max=" + getMax() / 1000 + "us");
+    }
+}
@@ -0,0 +1,690 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyDelta;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Outbound channel to one registered listener : values are queued in a bounded queue and drained by a worker of the dispatch engine
+ * <p/>
+ * Delivery follows listener {@link SubscriptionOptions} : superseded values are dropped when queued (latest value policy) and drain is
+ * delayed to respect max rate and debounce window
+ *
+ * @author Bertrand Martel
+ */
+public class ListenerChannel implements Runnable {
+
+    private String TAG = ListenerChannel.class.getName();
+
+    /**
+     * max number of values delivered in one drain before giving the worker back to other channels
+     */
+    private final static int DRAIN_BATCH = 16;
+
+    private final int pid;
+
+    /**
+     * listener identifier in registry
+     */
+    private long listenerId = ListenerList.INVALID_ID;
+
+    private final IPropertyListener listener;
+
+    /**
+     * pending values (oldest value is dropped when capacity is reached)
+     */
+    private final ArrayDeque<PropertyEvent> queue = new ArrayDeque<>();
+
+    /**
+     * replay batches, sent before pending values (guarded by queue)
+     */
+    private final ArrayDeque<PropertyBatch> replayQueue = new ArrayDeque<>();
+
+    /**
+     * lowest version from which replayed history is complete
+     */
+    private long replayCompleteFrom = 0;
+
+    private final int capacity;
+
+    private final LaneScheduler scheduler;
+
+    /**
+     * lane in which this channel is drained
+     */
+    private final int priority;
+
+    /**
+     * max age of an event in ns (0 : no deadline)
+     */
+    private final long deadlineNs;
+
+    private final SubscriptionOptions options;
+
+    /**
+     * min interval between two notifications in ms
+     */
+    private final long minIntervalMs;
+
+    /**
+     * time of last queued value in ms (guarded by queue)
+     */
+    private long lastOfferTime = 0;
+
+    /**
+     * time before which no notification can be sent in ms (guarded by queue)
+     */
+    private long nextDeliveryTime = 0;
+
+    /**
+     * true when a drain is pending or running on a worker
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * time at which scheduled drain is allowed to run in ns : deadline only counts time spent waiting for a worker, not rate limit
+     * or debounce delay
+     */
+    private volatile long readyTime = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * death recipient linked to listener binder
+     */
+    private IBinder.DeathRecipient deathRecipient = null;
+
+    private long droppedCount = 0;
+
+    /**
+     * number of callbacks that can be sent before client grants more (guarded by queue, unused without flow control)
+     */
+    private int credits;
+
+    private final boolean flowControl;
+
+    /**
+     * number of values dropped because client was lagging (guarded by queue)
+     */
+    private long shedCount = 0;
+
+    private final ServiceMetrics metrics;
+
+    /**
+     * callback latency histogram shared by listeners of the same client
+     */
+    private final LatencyHistogram clientCallbackLatency;
+
+    /**
+     * last value sent (base of next delta) and its version. Only accessed by the worker draining this channel
+     */
+    private String lastSentValue = null;
+
+    private long lastSentVersion = 0;
+
+    /**
+     * ring of last sent versions used to detect a client which doesnt acknowledge anymore
+     */
+    private final long[] sentVersions;
+
+    private int sentIndex = 0;
+
+    private int sentCount = 0;
+
+    /**
+     * last version acknowledged by client
+     */
+    private volatile long acknowledgedVersion = 0;
+
+    public ListenerChannel(int pid, IPropertyListener listener, SubscriptionOptions options, int capacity, LaneScheduler scheduler,
+                           ServiceMetrics metrics) {
+        this.pid = pid;
+        this.metrics = metrics;
+        this.clientCallbackLatency = metrics.getClientHistogram(pid);
+        this.listener = listener;
+        this.options = options;
+        this.capacity = capacity;
+        this.scheduler = scheduler;
+        this.priority = options.getPriority();
+        this.deadlineNs = options.getDeadlineMs() * 1000000L;
+        this.minIntervalMs = options.getMinIntervalMs();
+        this.sentVersions = new long[Math.max(1, options.getMaxUnacknowledged())];
+        this.flowControl = options.getInitialCredits() > 0;
+        this.credits = options.getInitialCredits();
+    }
+
+    /**
+     * find a listener channel without caller PID (not available in a oneway call) : identifier is looked up in each client list and
+     * listener binder must match so that a client cant reach the listener of another one
+     *
+     * @param snapshot       registry snapshot
+     * @param listenerId     listener identifier
+     * @param listenerBinder binder of listener
+     * @return channel or null if not found
+     */
+    public static ListenerChannel find(Map<Integer, ListenerList<ListenerChannel>> snapshot, long listenerId, IBinder listenerBinder) {
+
+        for (ListenerList<ListenerChannel> listenerList : snapshot.values()) {
+            ListenerChannel channel = listenerList.get(listenerId);
+            if (channel != null && channel.listener.asBinder().equals(listenerBinder))
+                return channel;
+        }
+        return null;
+    }
+
+    /**
+     * queue an event for this listener
+     *
+     * @param event event to be delivered
+     * @return false if channel is closed
+     */
+    public boolean offer(PropertyEvent event) {
+
+        if (closed)
+            return false;
+
+        long delay;
+        boolean disconnect = false;
+
+        synchronized (queue) {
+
+            if (options.getMaxLag() > 0 && getLag() >= options.getMaxLag())
+                disconnect = !shed(event);
+
+            if (options.getDeliveryPolicy() == SubscriptionOptions.DELIVERY_LATEST) {
+                //superseded value of the same property is dropped before being marshalled
+                Iterator<PropertyEvent> it = queue.iterator();
+                while (it.hasNext()) {
+                    if (it.next().getKey().equals(event.getKey())) {
+                        it.remove();
+                        droppedCount++;
+                    }
+                }
+            }
+
+            //with latest value policy, queue holds at most one value per property : latest value of a property is never dropped
+            if (queue.size() >= capacity && options.getDeliveryPolicy() != SubscriptionOptions.DELIVERY_LATEST) {
+                queue.poll();
+                droppedCount++;
+            }
+            queue.add(event);
+
+            lastOfferTime = SystemClock.uptimeMillis();
+            delay = getDelay(lastOfferTime);
+        }
+
+        if (disconnect) {
+            Log.e(TAG, "listener of process " + pid + " lags more than " + options.getMaxLag() + " values. Closing its channel.");
+            metrics.incrementShedListeners();
+            disconnect("lag above " + options.getMaxLag() + " values");
+            return false;
+        }
+        schedule(delay);
+        return true;
+    }
+
+    /**
+     * shed load of a lagging client according to its shed policy (must be called with queue lock held)
+     *
+     * @param event event being queued
+     * @return false if listener must be disconnected
+     */
+    private boolean shed(PropertyEvent event) {
+
+        switch (options.getShedPolicy()) {
+
+            case SubscriptionOptions.SHED_DISCONNECT:
+                return false;
+
+            case SubscriptionOptions.SHED_LATEST:
+                int removed = 0;
+                Iterator<PropertyEvent> it = queue.iterator();
+                while (it.hasNext()) {
+                    if (it.next().getKey().equals(event.getKey())) {
+                        it.remove();
+                        removed++;
+                    }
+                }
+                if (removed > 0) {
+                    droppedCount += removed;
+                    shedCount += removed;
+                    break;
+                }
+                //no superseded value : oldest value is dropped
+
+            default:
+                if (queue.poll() != null) {
+                    droppedCount++;
+                    shedCount++;
+                }
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * get number of values client lags behind : pending values and callbacks not acknowledged by a credit grant (must be called with
+     * queue lock held)
+     *
+     * @return lag in values
+     */
+    private int getLag() {
+
+        int lag = queue.size() + replayQueue.size();
+
+        if (flowControl)
+            lag += Math.max(0, options.getInitialCredits() - credits);
+
+        return lag;
+    }
+
+    /**
+     * give credits to a listener registered with flow control : a stalled channel resumes
+     *
+     * @param count number of credits
+     */
+    public void grantCredits(int count) {
+
+        if (!flowControl || count <= 0 || closed)
+            return;
+
+        long delay;
+
+        synchronized (queue) {
+
+            credits = (int) Math.min(Integer.MAX_VALUE, (long) credits + count);
+
+            if (queue.isEmpty() && replayQueue.isEmpty())
+                return;
+
+            delay = replayQueue.isEmpty() ? getDelay(SystemClock.uptimeMillis()) : 0;
+        }
+        schedule(delay);
+    }
+
+    /**
+     * queue a replay of recent changes : it is sent before values queued before or after it
+     *
+     * @param replay replay read from replay buffer
+     */
+    public void offerReplay(ReplayBuffer.Replay replay) {
+
+        if (closed)
+            return;
+
+        synchronized (queue) {
+
+            replayCompleteFrom = replay.getCompleteFrom();
+
+            for (PropertyBatch batch : replay.getBatches()) {
+                replayQueue.add(batch);
+            }
+
+            //end of replay is always notified, even if there is nothing to replay
+            if (replayQueue.isEmpty())
+                replayQueue.add(new PropertyBatch(new String[0], new String[0], new long[0]));
+        }
+        schedule(0);
+    }
+
+    /**
+     * get delay before next notification can be sent (must be called with queue lock held)
+     *
+     * @param now current time in ms
+     * @return delay in ms (0 if a notification can be sent now)
+     */
+    private long getDelay(long now) {
+        long deliveryTime = Math.max(nextDeliveryTime, lastOfferTime + options.getDebounceMs());
+        return Math.max(0, deliveryTime - now);
+    }
+
+    private void schedule(long delay) {
+        if (scheduled.compareAndSet(false, true)) {
+            readyTime = System.nanoTime() + delay * 1000000L;
+            boolean accepted;
+            if (delay > 0)
+                accepted = scheduler.schedule(this, priority, delay);
+            else
+                accepted = scheduler.execute(this, priority);
+
+            //scheduler is shut down : channel must not stay marked as scheduled
+            if (!accepted)
+                scheduled.set(false);
+        }
+    }
+
+    /**
+     * drain pending values (executed on a dispatch worker)
+     */
+    @Override
+    public void run() {
+
+        int sent = 0;
+
+        while (!closed && sent < DRAIN_BATCH) {
+
+            PropertyBatch replay;
+            boolean lastReplay;
+            long completeFrom;
+
+            synchronized (queue) {
+
+                //client has not acknowledged enough callbacks : drain resumes when it grants credits
+                if (flowControl && credits <= 0)
+                    break;
+
+                replay = replayQueue.poll();
+                lastReplay = replayQueue.isEmpty();
+                completeFrom = replayCompleteFrom;
+
+                if (replay != null && flowControl)
+                    credits--;
+            }
+
+            //replay is not subject to rate limit or deadline : it is history client asked for
+            if (replay != null) {
+                try {
+                    listener.onReplay(replay, completeFrom, lastReplay);
+                    sent++;
+                } catch (RemoteException e) {
+                    metrics.incrementRemoteExceptions();
+                    Log.e(TAG, "listener of process " + pid + " failed. Closing its channel.");
+                    disconnect("callback failed");
+                }
+                continue;
+            }
+
+            PropertyEvent event;
+            boolean superseded = false;
+            synchronized (queue) {
+
+                long now = SystemClock.uptimeMillis();
+
+                if (queue.isEmpty() || getDelay(now) > 0)
+                    break;
+
+                event = queue.poll();
+
+                //latest value of a property is never dropped on deadline : client would keep a stale value
+                if (deadlineNs > 0) {
+                    for (PropertyEvent pending : queue) {
+                        if (pending.getKey().equals(event.getKey())) {
+                            superseded = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (flowControl)
+                    credits--;
+
+                if (minIntervalMs > 0)
+                    nextDeliveryTime = now + minIntervalMs;
+            }
+
+            long start = System.nanoTime();
+            long queueWait = start - event.getDispatchTime();
+
+            metrics.recordQueueWait(priority, queueWait);
+
+            //superseded value that missed its deadline is not worth being marshalled anymore
+            if (superseded && start - Math.max(event.getDispatchTime(), readyTime) > deadlineNs) {
+                metrics.incrementDeadlineDrops();
+                synchronized (queue) {
+                    droppedCount++;
+                    if (flowControl)
+                        credits++;
+                }
+                continue;
+            }
+
+            try {
+                deliver(event);
+                sent++;
+
+                long latency = System.nanoTime() - start;
+                metrics.recordCallback(clientCallbackLatency, latency);
+
+            } catch (RemoteException e) {
+                metrics.incrementRemoteExceptions();
+                Log.e(TAG, "listener of process " + pid + " failed. Closing its channel.");
+                disconnect("callback failed");
+            }
+        }
+
+        scheduled.set(false);
+
+        if (!closed) {
+
+            long delay;
+            synchronized (queue) {
+                if ((queue.isEmpty() && replayQueue.isEmpty()) || (flowControl && credits <= 0))
+                    return;
+                delay = replayQueue.isEmpty() ? getDelay(SystemClock.uptimeMillis()) : 0;
+            }
+            schedule(delay);
+        }
+    }
+
+    /**
+     * send an event to listener
+     *
+     * @param event event to be sent
+     * @throws RemoteException
+     */
+    private void deliver(PropertyEvent event) throws RemoteException {
+
+        //a large value is read by client from snapshot region or with getProperties, never marshalled in a callback
+        if (event.isLarge() && (!event.isSnapshot() || options.isTypedValues() || options.isKeyedDelivery())) {
+            listener.onLargeValue(event.getKey(), event.getVersion(), event.getPayloadLength());
+            return;
+        }
+
+        if (options.isTypedValues()) {
+            listener.onTypedChange(event.getKey(), event.getTypedValue(), event.getVersion());
+            return;
+        }
+
+        if (!event.isDefaultKey() || options.isKeyedDelivery()) {
+            listener.onKeyChange(event.getKey(), event.getValue(), event.getVersion());
+            return;
+        }
+
+        if (!options.isDeltas()) {
+            if (event.isSnapshot())
+                listener.onSnapshotReady(event.getVersion(), event.getPayloadLength());
+            else
+                listener.onPropertyChange(event.getValue());
+            return;
+        }
+
+        PropertyDelta delta = null;
+
+        //client that falls behind gets a full value
+        if (lastSentValue != null && event.getValue() != null && !isLagging()) {
+
+            delta = event.getDelta(lastSentValue, lastSentVersion);
+
+            if (delta.getInserted().length() > event.getValue().length() / 2)
+                delta = null;
+        }
+
+        if (delta != null)
+            listener.onPropertyDelta(delta);
+        else if (event.isSnapshot())
+            listener.onSnapshotReady(event.getVersion(), event.getPayloadLength());
+        else
+            listener.onPropertyVersion(event.getValue(), event.getVersion());
+
+        lastSentValue = event.getValue();
+        lastSentVersion = event.getVersion();
+
+        sentVersions[sentIndex] = lastSentVersion;
+        sentIndex = (sentIndex + 1) % sentVersions.length;
+        if (sentCount < sentVersions.length)
+            sentCount++;
+    }
+
+    /**
+     * @return true if the oldest of the last sent versions has not been acknowledged
+     */
+    private boolean isLagging() {
+        return sentCount == sentVersions.length && sentVersions[sentIndex] > acknowledgedVersion;
+    }
+
+    /**
+     * acknowledge notifications up to a version
+     *
+     * @param version last version processed by client
+     */
+    public void acknowledge(long version) {
+        if (version > acknowledgedVersion)
+            acknowledgedVersion = version;
+    }
+
+    /**
+     * link a death recipient to listener binder (unlinked when channel is closed)
+     *
+     * @param deathRecipient called when listener process dies
+     * @throws RemoteException if listener process is already dead
+     */
+    public synchronized void linkToDeath(IBinder.DeathRecipient deathRecipient) throws RemoteException {
+        if (closed)
+            return;
+        listener.asBinder().linkToDeath(deathRecipient, 0);
+        this.deathRecipient = deathRecipient;
+    }
+
+    /**
+     * close channel : pending values are discarded
+     */
+    public void close() {
+        closed = true;
+        synchronized (queue) {
+            queue.clear();
+            replayQueue.clear();
+        }
+        synchronized (this) {
+            if (deathRecipient != null) {
+                listener.asBinder().unlinkToDeath(deathRecipient, 0);
+                deathRecipient = null;
+            }
+        }
+    }
+
+    /**
+     * close channel and tell listener so that it can register again (listener may be dead : notification is best effort)
+     *
+     * @param reason reason of closing
+     */
+    private void disconnect(String reason) {
+
+        if (closed)
+            return;
+
+        close();
+
+        try {
+            listener.onChannelClosed(reason);
+        } catch (RemoteException e) {
+            Log.e(TAG, "listener of process " + pid + " not notified of channel closing");
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    public long getListenerId() {
+        return listenerId;
+    }
+
+    public void setListenerId(long listenerId) {
+        this.listenerId = listenerId;
+    }
+
+    public SubscriptionOptions getOptions() {
+        return options;
+    }
+
+    public IPropertyListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return number of values waiting to be sent
+     */
+    public int getQueueSize() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return number of values client lags behind
+     */
+    public int getLagSize() {
+        synchronized (queue) {
+            return getLag();
+        }
+    }
+
+    /**
+     * @return remaining credits (0 without flow control)
+     */
+    public int getCredits() {
+        synchronized (queue) {
+            return flowControl ? credits : 0;
+        }
+    }
+
+    public long getShedCount() {
+        synchronized (queue) {
+            return shedCount;
+        }
+    }
+
+    public long getDroppedCount() {
+        synchronized (queue) {
+            return droppedCount;
+        }
+    }
+}
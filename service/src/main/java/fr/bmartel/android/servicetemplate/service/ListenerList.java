@@ -23,43 +23,274 @@
  */
 package fr.bmartel.android.servicetemplate.service;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Build a list of <T> object identified with a random string identifier
+ * Build a list of <T> object identified with a 64 bit identifier : slot generation in high 32 bits and slot index in low 32 bits
+ * <p/>
+ * Slot table : writers are serialized, readers look up an identifier in O(1) without locking. A slot takes a new generation from
+ * a generation source when it is first used and when its object is removed, so that an identifier is never reused and two
+ * objects never share the same identifier. Lists of a registry share their generation source : a list created again for a PID
+ * doesnt hand out identifiers of the list it replaces
  *
  * @author Bertrand Martel
  */
 public class ListenerList<T> {
 
-    private HashMap<String, T> listenerMap = new HashMap<String, T>();
+    private final static int INITIAL_CAPACITY = 4;
+
+    /**
+     * identifier never attributed to an object
+     */
+    public final static long INVALID_ID = 0;
+
+    /**
+     * slots and their generation (replaced by a larger table when full)
+     */
+    private static class Table<T> {
+
+        private final AtomicReferenceArray<T> slots;
+
+        private final AtomicIntegerArray generations;
+
+        private Table(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+            generations = new AtomicIntegerArray(capacity);
+        }
+
+        private int length() {
+            return slots.length();
+        }
+    }
+
+    private volatile Table<T> table = newTable(null, INITIAL_CAPACITY);
+
+    /**
+     * stack of free slots below nextSlot (guarded by this)
+     */
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+    private int freeCount = 0;
+
+    /**
+     * first slot never used (guarded by this)
+     */
+    private int nextSlot = 0;
+
+    private volatile int size = 0;
+
+    /**
+     * true once list has been removed from its registry because it was empty : no object can be added anymore (guarded by this)
+     */
+    private boolean retired = false;
 
-    private RandomGen randomGen = new RandomGen(15);
+    /**
+     * source of slot generations (never 0)
+     */
+    private final AtomicInteger generationSource;
 
     public ListenerList() {
+        this(new AtomicInteger());
+    }
+
+    /**
+     * @param generationSource source of slot generations, shared by lists whose identifiers must not collide
+     */
+    public ListenerList(AtomicInteger generationSource) {
+        this.generationSource = generationSource;
+    }
+
+    /**
+     * add an object
+     *
+     * @param obj object to add
+     * @return object identifier or INVALID_ID if list has been retired
+     */
+    public synchronized long add(T obj) {
+
+        if (retired)
+            return INVALID_ID;
+
+        int slot;
+
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (nextSlot == table.length()) {
+                table = newTable(table, table.length() * 2);
+                freeSlots = new int[table.length()];
+            }
+            slot = nextSlot++;
+            table.generations.set(slot, nextGeneration());
+        }
+
+        Table<T> current = table;
+        current.slots.set(slot, obj);
+        size++;
+
+        return buildId(current.generations.get(slot), slot);
+    }
+
+    /**
+     * retrieve an object by identifier
+     *
+     * @param id object identifier
+     * @return object or null if not found
+     */
+    public T get(long id) {
+
+        Table<T> current = table;
+        int slot = (int) id;
+
+        if (slot < 0 || slot >= current.length())
+            return null;
+
+        T obj = current.slots.get(slot);
+
+        //slot may have been released and reused between the two reads
+        if (obj == null || current.generations.get(slot) != (int) (id >>> 32) || current.slots.get(slot) != obj)
+            return null;
+
+        return obj;
+    }
+
+    /**
+     * remove an object by identifier
+     *
+     * @param id object identifier
+     * @return removed object or null if not found
+     */
+    public synchronized T remove(long id) {
+
+        Table<T> current = table;
+        int slot = (int) id;
+
+        if (slot < 0 || slot >= nextSlot || current.generations.get(slot) != (int) (id >>> 32))
+            return null;
+
+        T removed = current.slots.get(slot);
+
+        if (removed != null)
+            release(current, slot);
+
+        return removed;
     }
 
-    public String add(T obj) {
-        String generatedId = randomGen.nextString();
-        listenerMap.put(generatedId, obj);
-        return generatedId;
+    public synchronized void clear() {
+        Table<T> current = table;
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (current.slots.get(slot) != null)
+                release(current, slot);
+        }
     }
 
-    public void remove(String id) {
-        if (listenerMap.containsKey(id))
-            listenerMap.remove(id);
+    /**
+     * release a slot (must be called with lock held)
+     */
+    private void release(Table<T> current, int slot) {
+
+        current.slots.set(slot, null);
+
+        current.generations.set(slot, nextGeneration());
+
+        freeSlots[freeCount++] = slot;
+        size--;
     }
 
-    public void clear() {
-        listenerMap.clear();
+    /**
+     * retire list if it is empty : an empty list can then be removed from its registry without losing a concurrent add
+     *
+     * @return true if list is retired
+     */
+    public synchronized boolean retireIfEmpty() {
+        if (size == 0)
+            retired = true;
+        return retired;
     }
 
     public int size() {
-        return listenerMap.size();
+        return size;
+    }
+
+    /**
+     * retrieve objects currently registered
+     *
+     * @return new list of objects
+     */
+    public List<T> getValues() {
+
+        Table<T> current = table;
+        ArrayList<T> values = new ArrayList<>(size);
+
+        for (int slot = 0; slot < current.length(); slot++) {
+            T obj = current.slots.get(slot);
+            if (obj != null)
+                values.add(obj);
+        }
+        return values;
+    }
+
+    /**
+     * @return new slot generation (generation 0 is never used so that INVALID_ID cant be attributed)
+     */
+    private int nextGeneration() {
+        int generation;
+        do {
+            generation = generationSource.incrementAndGet();
+        } while (generation == 0);
+        return generation;
+    }
+
+    private static <T> Table<T> newTable(Table<T> previous, int capacity) {
+
+        Table<T> next = new Table<>(capacity);
+
+        if (previous != null) {
+            for (int slot = 0; slot < previous.length(); slot++) {
+                next.slots.set(slot, previous.slots.get(slot));
+                next.generations.set(slot, previous.generations.get(slot));
+            }
+        }
+        return next;
+    }
+
+    private static long buildId(int generation, int slot) {
+        return ((long) generation << 32) | (slot & 0xFFFFFFFFL);
     }
 
-    public HashMap<String, T> getMap() {
-        return listenerMap;
+    /**
+     * encode an identifier for AIDL interface
+     *
+     * @param id object identifier
+     * @return hexadecimal form of identifier
+     */
+    public static String formatId(long id) {
+        return Long.toHexString(id);
     }
 
+    /**
+     * decode an identifier received through AIDL interface
+     *
+     * @param id hexadecimal form of identifier
+     * @return object identifier or INVALID_ID if malformed
+     */
+    public static long parseId(String id) {
+
+        if (id == null || id.length() == 0 || id.length() > 16)
+            return INVALID_ID;
+
+        long value = 0;
+
+        for (int i = 0; i < id.length(); i++) {
+            int digit = Character.digit(id.charAt(i), 16);
+            if (digit < 0)
+                return INVALID_ID;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
 }
@@ -0,0 +1,206 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registry of {@link ListenerList} identified by a specific PID
+ * <p/>
+ * Readers (dispatcher) iterate an immutable snapshot without locking. Writers (binder threads) update with CAS : the PID map is
+ * only copied when a PID appears or disappears, listeners of different PID are updated independently in their own {@link ListenerList}
+ *
+ * @author Bertrand Martel
+ */
+public class ListenerRegistry<T> {
+
+    private AtomicReference<HashMap<Integer, ListenerList<T>>> registry = new AtomicReference<>(new HashMap<Integer, ListenerList<T>>());
+
+    /**
+     * incremented on each modification (used to know if an index built from a snapshot is outdated)
+     */
+    private AtomicLong modificationCount = new AtomicLong();
+
+    /**
+     * slot generations shared by all lists : identifiers stay unique when the list of a PID is removed and created again
+     */
+    private final AtomicInteger generations = new AtomicInteger();
+
+    public ListenerRegistry() {
+    }
+
+    /**
+     * add an object for a PID
+     *
+     * @param pid process id
+     * @param obj object to add
+     * @return object identifier
+     */
+    public long add(int pid, T obj) {
+
+        while (true) {
+
+            HashMap<Integer, ListenerList<T>> current = registry.get();
+            ListenerList<T> listenerList = current.get(pid);
+
+            if (listenerList == null) {
+
+                listenerList = new ListenerList<>(generations);
+                HashMap<Integer, ListenerList<T>> next = new HashMap<>(current);
+                next.put(pid, listenerList);
+
+                if (!registry.compareAndSet(current, next))
+                    continue;
+            }
+
+            long id = listenerList.add(obj);
+
+            //empty list retired by a concurrent remove : finish its removal and add to a new list
+            if (id == ListenerList.INVALID_ID) {
+                removeIfEmpty(pid, listenerList);
+                continue;
+            }
+
+            //list may have been removed concurrently (PID removed)
+            if (registry.get().get(pid) == listenerList) {
+                modificationCount.incrementAndGet();
+                return id;
+            }
+
+            listenerList.remove(id);
+        }
+    }
+
+    /**
+     * retrieve an object by identifier for a PID
+     *
+     * @param pid process id
+     * @param id  object identifier
+     * @return object or null if not found
+     */
+    public T get(int pid, long id) {
+        ListenerList<T> listenerList = registry.get().get(pid);
+        return (listenerList != null) ? listenerList.get(id) : null;
+    }
+
+    /**
+     * remove an object by identifier for a PID
+     *
+     * @param pid process id
+     * @param id  object identifier
+     * @return removed object or null if not found
+     */
+    public T remove(int pid, long id) {
+
+        ListenerList<T> listenerList = registry.get().get(pid);
+
+        if (listenerList == null)
+            return null;
+
+        T removed = listenerList.remove(id);
+
+        if (removed != null)
+            modificationCount.incrementAndGet();
+
+        if (listenerList.size() == 0)
+            removeIfEmpty(pid, listenerList);
+
+        return removed;
+    }
+
+    /**
+     * remove the list of a PID if it is empty. List is retired first under its lock, so that an add racing with the removal fails
+     * and is retried on a new list
+     */
+    private void removeIfEmpty(int pid, ListenerList<T> listenerList) {
+
+        if (!listenerList.retireIfEmpty())
+            return;
+
+        HashMap<Integer, ListenerList<T>> current;
+        HashMap<Integer, ListenerList<T>> next;
+        do {
+            current = registry.get();
+            if (current.get(pid) != listenerList)
+                return;
+            next = new HashMap<>(current);
+            next.remove(pid);
+        } while (!registry.compareAndSet(current, next));
+    }
+
+    /**
+     * remove all objects of a PID
+     *
+     * @param pid process id
+     * @return removed list or null if PID was not registered
+     */
+    public ListenerList<T> removeAll(int pid) {
+
+        HashMap<Integer, ListenerList<T>> current;
+        HashMap<Integer, ListenerList<T>> next;
+        ListenerList<T> removed;
+        do {
+            current = registry.get();
+            if (!current.containsKey(pid))
+                return null;
+            next = new HashMap<>(current);
+            removed = next.remove(pid);
+        } while (!registry.compareAndSet(current, next));
+
+        modificationCount.incrementAndGet();
+
+        return removed;
+    }
+
+    /**
+     * @return modification count (read it before taking a snapshot)
+     */
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /**
+     * retrieve current snapshot. This map must not be modified
+     *
+     * @return snapshot of PID / listener list map
+     */
+    public Map<Integer, ListenerList<T>> getSnapshot() {
+        return registry.get();
+    }
+
+    /**
+     * @return total number of objects registered
+     */
+    public int size() {
+        int size = 0;
+        for (ListenerList<T> listenerList : registry.get().values()) {
+            size += listenerList.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyDelta;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyKeys;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyValue;
+
+/**
+ * A property change queued in listener channels. A large value is not sent in callbacks : it may have been published in shared
+ * snapshot region (default property), otherwise listeners are only told to read it
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyEvent {
+
+    private String key = null;
+
+    private String value = null;
+
+    private long version = 0;
+
+    private boolean snapshot = false;
+
+    /**
+     * true if value is too large to be sent in a callback
+     */
+    private boolean large = false;
+
+    /**
+     * UTF-8 length of a large value
+     */
+    private int payloadLength = 0;
+
+    /**
+     * time at which event has been dispatched to listener channels (System.nanoTime)
+     */
+    private long dispatchTime = 0;
+
+    /**
+     * last delta computed for this event (channels usually share the same base value)
+     */
+    private PropertyDelta delta = null;
+
+    /**
+     * value encoded in UTF-8, shared by all channels delivering typed values
+     */
+    private PropertyValue typedValue = null;
+
+    private PropertyEvent() {
+    }
+
+    /**
+     * @param entry property entry
+     * @return event carrying the value
+     */
+    public static PropertyEvent value(PropertyEntry entry) {
+        PropertyEvent event = new PropertyEvent();
+        event.key = entry.getKey();
+        event.value = entry.getValue();
+        event.version = entry.getVersion();
+        event.dispatchTime = System.nanoTime();
+        return event;
+    }
+
+    /**
+     * @param entry          property entry
+     * @param snapshotLength snapshot payload length
+     * @return event notifying a shared snapshot
+     */
+    public static PropertyEvent snapshot(PropertyEntry entry, int snapshotLength) {
+        PropertyEvent event = large(entry, snapshotLength);
+        event.snapshot = true;
+        return event;
+    }
+
+    /**
+     * @param entry         property entry
+     * @param payloadLength UTF-8 length of value
+     * @return event notifying a value too large to be sent in a callback
+     */
+    public static PropertyEvent large(PropertyEntry entry, int payloadLength) {
+        PropertyEvent event = value(entry);
+        event.large = true;
+        event.payloadLength = payloadLength;
+        return event;
+    }
+
+    /**
+     * get delta between a base value and value of this event
+     *
+     * @param base        base value
+     * @param baseVersion version of base value
+     * @return delta
+     */
+    public synchronized PropertyDelta getDelta(String base, long baseVersion) {
+        if (delta == null || delta.getBaseVersion() != baseVersion)
+            delta = PropertyDelta.compute(base, baseVersion, value, version);
+        return delta;
+    }
+
+    /**
+     * @return value encoded in UTF-8 (encoded once for all listeners)
+     */
+    public synchronized PropertyValue getTypedValue() {
+        if (typedValue == null)
+            typedValue = new PropertyValue().setUtf8(value);
+        return typedValue;
+    }
+
+    public long getDispatchTime() {
+        return dispatchTime;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return true if event is about the default property (the one accessed by setProperty / getProperty)
+     */
+    public boolean isDefaultKey() {
+        return PropertyKeys.DEFAULT_KEY.equals(key);
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if value is too large to be sent in a callback (snapshot events are large)
+     */
+    public boolean isLarge() {
+        return large;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe persistence of {@link PropertyStore} : an append-only journal mapped in memory and a snapshot written on compaction.
+ * <p/>
+ * Journal record : | payload length (int) | CRC32 of payload (int) | payload |
+ * <br/>
+ * Snapshot : | magic (int) | sequence (long) | entry count (int) | payloads |
+ * <br/>
+ * Payload : | version (long) | key length (int) | key (UTF-8) | value length (int, -1 if removed) | value (UTF-8) |
+ * <br/>
+ * Batch payload : | -1 (long) | entry count (int) | payloads |
+ * <p/>
+ * Entries of a multi-key commit are written in one batch record so that a commit is restored entirely or not at all. A record is
+ * encoded out of journal lock : writers only serialize on copying it to the mapped journal.
+ * <p/>
+ * Restore maps the snapshot and replays journal records until the first invalid one. A snapshot that cant be decoded is
+ * ignored and only the journal is replayed. An entry is only applied if it is newer
+ * than the one already restored for its key.
+ * <p/>
+ * Journal records are kept by position : every record still in journal after a compaction is replayed whatever its version,
+ * so that a write whose version was taken before the snapshot but appended after it is not lost. Compaction runs on the
+ * compaction executor when journal is half full, writers only compact themselves if journal is full.
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyJournal {
+
+    private String TAG = PropertyJournal.class.getName();
+
+    private final static int SNAPSHOT_MAGIC = 0x50524f50;
+
+    private final static int RECORD_HEADER_SIZE = 8;
+
+    private final static int SNAPSHOT_HEADER_SIZE = 4 + 8 + 4;
+
+    /**
+     * version, key length and value length of a payload
+     */
+    private final static int PAYLOAD_HEADER_SIZE = 8 + 4 + 4;
+
+    /**
+     * version field of a batch payload
+     */
+    private final static long BATCH_MARKER = -1;
+
+    private final static String SNAPSHOT_FILE = "properties.snapshot";
+
+    private final static String SNAPSHOT_TMP_FILE = "properties.snapshot.tmp";
+
+    private final static String JOURNAL_FILE = "properties.journal";
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory = null;
+
+    private MappedByteBuffer journal = null;
+
+    private CRC32 crc = new CRC32();
+
+    /**
+     * store compacted in snapshot when journal is full
+     */
+    private PropertyStore store = null;
+
+    /**
+     * executor running compaction out of writer threads (compaction is done by writers if null)
+     */
+    private Executor compactionExecutor = null;
+
+    /**
+     * true when a compaction has been submitted to compaction executor and not run yet
+     */
+    private boolean compactionPending = false;
+
+    /**
+     * duration of last compaction in microseconds
+     */
+    private volatile long lastCompactionDuration = 0;
+
+    private final Runnable compactionTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PropertyJournal.this) {
+                compactionPending = false;
+                compactIfNeeded();
+            }
+        }
+    };
+
+    /**
+     * @param directory directory of journal and snapshot files
+     * @param capacity  journal size in bytes
+     * @throws IOException
+     */
+    public PropertyJournal(File directory, int capacity) throws IOException {
+
+        this.directory = directory;
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("cant create directory " + directory);
+
+        RandomAccessFile journalFile = new RandomAccessFile(new File(directory, JOURNAL_FILE), "rw");
+        try {
+            if (journalFile.length() < capacity)
+                journalFile.setLength(capacity);
+            journal = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, journalFile.length());
+        } finally {
+            journalFile.close();
+        }
+    }
+
+    /**
+     * restore store content from snapshot and journal. Journal is then attached to store
+     *
+     * @param store store to restore
+     * @throws IOException
+     */
+    public synchronized void restore(PropertyStore store) throws IOException {
+
+        File snapshotFile = new File(directory, SNAPSHOT_FILE);
+
+        if (snapshotFile.exists()) {
+
+            RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "r");
+            try {
+                MappedByteBuffer buffer = snapshot.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, snapshot.length());
+
+                //snapshot is decoded entirely before being applied : a corrupted one doesnt leave a partial store
+                if (buffer.remaining() >= SNAPSHOT_HEADER_SIZE && buffer.getInt() == SNAPSHOT_MAGIC) {
+
+                    long sequence = buffer.getLong();
+                    PropertyEntry[] entries = readPayloads(buffer, buffer.getInt());
+
+                    if (entries != null) {
+                        store.restoreSequence(sequence);
+                        for (PropertyEntry entry : entries) {
+                            store.restore(entry);
+                        }
+                    } else {
+                        Log.e(TAG, "corrupted snapshot file " + snapshotFile + " : replaying journal only");
+                    }
+                } else {
+                    Log.e(TAG, "invalid snapshot file " + snapshotFile + " : replaying journal only");
+                }
+            } finally {
+                snapshot.close();
+            }
+        }
+
+        //replay journal tail
+        journal.position(0);
+
+        while (journal.remaining() >= RECORD_HEADER_SIZE) {
+
+            int start = journal.position();
+            int length = journal.getInt();
+            int checksum = journal.getInt();
+
+            if (length <= 0 || length > journal.remaining()) {
+                journal.position(start);
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            journal.get(payload);
+
+            crc.reset();
+            crc.update(payload, 0, length);
+
+            if ((int) crc.getValue() != checksum) {
+                Log.i(TAG, "journal truncated at " + start);
+                journal.position(start);
+                break;
+            }
+
+            //records before last compaction are not reachable anymore : a record is replayed even if older than snapshot
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+            int count = 1;
+            if (length >= 8 + 4 && buffer.getLong(0) == BATCH_MARKER) {
+                buffer.getLong();
+                count = buffer.getInt();
+            }
+
+            PropertyEntry[] entries = readPayloads(buffer, count);
+
+            if (entries == null) {
+                Log.i(TAG, "invalid journal record at " + start);
+                journal.position(start);
+                break;
+            }
+
+            //store keeps version of removed keys : an older record written concurrently doesnt resurrect them
+            for (PropertyEntry entry : entries) {
+                store.restore(entry);
+            }
+        }
+
+        store.clearTombstones();
+
+        this.store = store;
+    }
+
+    /**
+     * set executor running compaction when journal is half full
+     *
+     * @param compactionExecutor compaction executor
+     */
+    public synchronized void setCompactionExecutor(Executor compactionExecutor) {
+        this.compactionExecutor = compactionExecutor;
+    }
+
+    /**
+     * append an entry to journal (compaction is requested if journal is half full, journal is compacted in place if full)
+     *
+     * @param entry written entry
+     */
+    public void append(PropertyEntry entry) {
+        appendRecord(encode(entry), entry.getKey());
+    }
+
+    /**
+     * append entries of a multi-key commit in one record
+     *
+     * @param entries written entries
+     */
+    public void appendBatch(PropertyEntry[] entries) {
+
+        if (entries.length == 1) {
+            append(entries[0]);
+            return;
+        }
+
+        byte[][] payloads = new byte[entries.length][];
+        int length = 8 + 4;
+        for (int i = 0; i < entries.length; i++) {
+            payloads[i] = encode(entries[i]);
+            length += payloads[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putLong(BATCH_MARKER);
+        buffer.putInt(entries.length);
+        for (byte[] payload : payloads) {
+            buffer.put(payload);
+        }
+        appendRecord(buffer.array(), "batch of " + entries.length + " entries");
+    }
+
+    /**
+     * write an encoded record in journal
+     *
+     * @param payload     record payload
+     * @param description record description used in logs
+     */
+    private void appendRecord(byte[] payload, String description) {
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        int checksum = (int) crc.getValue();
+
+        synchronized (this) {
+
+            if (RECORD_HEADER_SIZE + payload.length > journal.capacity() - journal.position()) {
+                Log.i(TAG, "journal full : compacting in writer thread");
+                compact();
+                if (RECORD_HEADER_SIZE + payload.length > journal.capacity()) {
+                    Log.e(TAG, description + " too large for journal (" + payload.length + " bytes)");
+                    return;
+                }
+            }
+
+            int start = journal.position();
+
+            //payload and checksum are written before length so that a partial record is never valid
+            journal.position(start + 4);
+            journal.putInt(checksum);
+            journal.put(payload);
+
+            if (journal.remaining() >= 4)
+                journal.putInt(journal.position(), 0);
+
+            journal.putInt(start, payload.length);
+
+            if (compactionExecutor != null && !compactionPending && journal.position() > journal.capacity() / 2) {
+                compactionPending = true;
+                try {
+                    compactionExecutor.execute(compactionTask);
+                } catch (RejectedExecutionException e) {
+                    //service is stopping : journal will be compacted by a writer if it gets full
+                    compactionPending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * write store content in a new snapshot and reset journal
+     */
+    public synchronized void compact() {
+
+        if (store == null)
+            return;
+
+        long start = System.nanoTime();
+
+        File tmpFile = new File(directory, SNAPSHOT_TMP_FILE);
+
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            PropertyEntry[] entries = store.getEntries();
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(store.getSequence());
+                out.writeInt(entries.length);
+
+                for (PropertyEntry entry : entries) {
+                    writePayload(out, entry);
+                }
+                out.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(new File(directory, SNAPSHOT_FILE))) {
+                Log.e(TAG, "cant rename snapshot. Journal not compacted");
+                return;
+            }
+
+            journal.putInt(0, 0);
+            journal.position(0);
+            journal.force();
+
+            lastCompactionDuration = (System.nanoTime() - start) / 1000;
+            Log.i(TAG, "compacted " + entries.length + " properties in " + lastCompactionDuration + "us");
+
+        } catch (IOException e) {
+            Log.e(TAG, "snapshot failed. Journal not compacted", e);
+        }
+    }
+
+    /**
+     * compact journal if it is more than half full
+     */
+    public synchronized void compactIfNeeded() {
+        if (journal.position() > journal.capacity() / 2)
+            compact();
+    }
+
+    /**
+     * @return duration of last compaction in microseconds (0 if journal has not been compacted)
+     */
+    public long getLastCompactionDuration() {
+        return lastCompactionDuration;
+    }
+
+    /**
+     * @return number of journal bytes written since last compaction
+     */
+    public synchronized int getPosition() {
+        return journal.position();
+    }
+
+    /**
+     * flush journal to storage
+     */
+    public synchronized void flush() {
+        journal.force();
+    }
+
+    private byte[] encode(PropertyEntry entry) {
+
+        byte[] key = entry.getKey().getBytes(UTF8);
+        byte[] value = (entry.getValue() != null) ? entry.getValue().getBytes(UTF8) : null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + key.length + 4 + ((value != null) ? value.length : 0));
+        buffer.putLong(entry.getVersion());
+        buffer.putInt(key.length);
+        buffer.put(key);
+        if (value != null) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        } else {
+            buffer.putInt(-1);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * write payload of an entry to snapshot without intermediate buffer
+     */
+    private static void writePayload(DataOutputStream out, PropertyEntry entry) throws IOException {
+
+        byte[] key = entry.getKey().getBytes(UTF8);
+
+        out.writeLong(entry.getVersion());
+        out.writeInt(key.length);
+        out.write(key);
+
+        if (entry.getValue() != null) {
+            byte[] value = entry.getValue().getBytes(UTF8);
+            out.writeInt(value.length);
+            out.write(value);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    /**
+     * decode a sequence of payloads
+     *
+     * @param buffer buffer positioned on first payload
+     * @param count  payload count
+     * @return decoded entries or null if payloads are truncated or malformed
+     */
+    private PropertyEntry[] readPayloads(ByteBuffer buffer, int count) {
+
+        //each payload takes at least its header
+        if (count < 0 || count > buffer.remaining() / PAYLOAD_HEADER_SIZE)
+            return null;
+
+        PropertyEntry[] entries = new PropertyEntry[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                entries[i] = readPayload(buffer);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            return null;
+        }
+        return entries;
+    }
+
+    private PropertyEntry readPayload(ByteBuffer buffer) {
+
+        long version = buffer.getLong();
+
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+
+        String value = null;
+        int valueLength = buffer.getInt();
+        if (valueLength >= 0) {
+            byte[] valueBytes = new byte[valueLength];
+            buffer.get(valueBytes);
+            value = new String(valueBytes, UTF8);
+        }
+        return new PropertyEntry(new String(key, UTF8), value, version);
+    }
+}
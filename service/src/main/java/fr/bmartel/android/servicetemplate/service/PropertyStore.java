@@ -0,0 +1,443 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+
+/**
+ * Multi-key property store shared by binder threads and dispatch workers
+ * <p/>
+ * Each change gets a monotonically increasing sequence number used as version of the written value. Entries are immutable :
+ * a reader of one key always gets a complete value with its version without locking. Writers lock the stripe of each key they
+ * write so that conditional writes (compare and set, multi-key commit) are atomic. Reads of several keys or of the whole store
+ * lock the read side of their stripes so that they see a commit entirely or not at all.
+ * <p/>
+ * A change is journaled after its stripes are unlocked (one record per commit) : writers of keys of different stripes only
+ * serialize on copying their record to the journal.
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyStore {
+
+    private ConcurrentHashMap<String, PropertyEntry> properties = new ConcurrentHashMap<>();
+
+    private AtomicLong sequence = new AtomicLong();
+
+    /**
+     * version of properties removed by restore : an older value applied afterwards (mirror bootstrap read, journal record written
+     * concurrently) must not resurrect them
+     */
+    private ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<>();
+
+    /**
+     * number of lock stripes (power of 2)
+     */
+    private final static int STRIPE_COUNT = 64;
+
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPE_COUNT];
+
+    /**
+     * journal persisting each change (null if store is not persisted)
+     */
+    private volatile PropertyJournal journal = null;
+
+    /**
+     * history of changes, recorded in version order (null if history is not kept)
+     */
+    private volatile ReplayBuffer history = null;
+
+    public PropertyStore() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * set a property value
+     *
+     * @param key   property key
+     * @param value property value (null to remove property)
+     * @return written entry
+     */
+    public PropertyEntry put(String key, String value) {
+
+        PropertyEntry entry;
+
+        Lock lock = getStripe(key).writeLock();
+        lock.lock();
+        try {
+            entry = write(key, value);
+        } finally {
+            lock.unlock();
+        }
+        journal(entry);
+        return entry;
+    }
+
+    /**
+     * set a property value if its current version is the expected one
+     *
+     * @param key             property key
+     * @param expectedVersion expected version of current value (0 if property must not exist)
+     * @param value           property value (null to remove property)
+     * @return written entry or null if current version is not the expected one
+     */
+    public PropertyEntry compareAndSet(String key, long expectedVersion, String value) {
+
+        PropertyEntry entry;
+
+        Lock lock = getStripe(key).writeLock();
+        lock.lock();
+        try {
+            if (getVersion(properties.get(key)) != expectedVersion)
+                return null;
+            entry = write(key, value);
+        } finally {
+            lock.unlock();
+        }
+        journal(entry);
+        return entry;
+    }
+
+    /**
+     * set all properties of a batch if each of them still has the version given in the batch. Either all properties are written
+     * or none of them
+     *
+     * @param batch properties with their expected version (0 if property must not exist)
+     * @return written entries or null if a property has been modified
+     */
+    public PropertyEntry[] commit(PropertyBatch batch) {
+
+        String[] keys = new String[batch.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = batch.getKey(i);
+        }
+
+        PropertyEntry[] entries = new PropertyEntry[keys.length];
+
+        int[] locked = lockStripes(keys, true);
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (getVersion(properties.get(keys[i])) != batch.getVersion(i))
+                    return null;
+            }
+
+            for (int i = 0; i < keys.length; i++) {
+                entries[i] = write(keys[i], batch.getValue(i));
+            }
+        } finally {
+            unlockStripes(locked, true);
+        }
+
+        //one record : a commit is restored entirely or not at all
+        PropertyJournal journal = this.journal;
+        if (journal != null)
+            journal.appendBatch(entries);
+
+        return entries;
+    }
+
+    /**
+     * write a new entry (stripe of key must be locked)
+     */
+    private PropertyEntry write(String key, String value) {
+
+        //sequence is taken with stripe locked so that versions of a key are always increasing
+        PropertyEntry entry;
+
+        //history keeps every change, even those coalesced before dispatch : version is taken with history locked so that
+        //changes of different stripes are recorded in version order
+        ReplayBuffer history = this.history;
+        if (history != null)
+            entry = history.append(key, value, sequence);
+        else
+            entry = new PropertyEntry(key, value, sequence.incrementAndGet());
+
+        if (value == null)
+            properties.remove(key);
+        else
+            properties.put(key, entry);
+
+        return entry;
+    }
+
+    /**
+     * persist a written entry (records of a key may be journaled out of version order : restore keeps the newest one)
+     */
+    private void journal(PropertyEntry entry) {
+        PropertyJournal journal = this.journal;
+        if (journal != null)
+            journal.append(entry);
+    }
+
+    private static long getVersion(PropertyEntry entry) {
+        return (entry != null) ? entry.getVersion() : 0;
+    }
+
+    private ReentrantReadWriteLock getStripe(String key) {
+        return stripes[getStripeIndex(key)];
+    }
+
+    private static int getStripeIndex(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1);
+    }
+
+    /**
+     * lock stripes of several keys in stripe order so that two multi-key operations cant deadlock
+     *
+     * @param keys  property keys
+     * @param write true for write locks, false for read locks
+     * @return locked stripe indexes
+     */
+    private int[] lockStripes(String[] keys, boolean write) {
+
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = getStripeIndex(keys[i]);
+        }
+        Arrays.sort(indexes);
+
+        int count = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1])
+                indexes[count++] = indexes[i];
+        }
+        indexes = Arrays.copyOf(indexes, count);
+
+        for (int index : indexes) {
+            (write ? stripes[index].writeLock() : stripes[index].readLock()).lock();
+        }
+        return indexes;
+    }
+
+    private void unlockStripes(int[] indexes, boolean write) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            (write ? stripes[indexes[i]].writeLock() : stripes[indexes[i]].readLock()).unlock();
+        }
+    }
+
+    /**
+     * apply an entry keeping its version if it is newer than current one (used when restoring store or mirroring another store)
+     *
+     * @param entry persisted or mirrored entry
+     * @return true if store has been modified
+     */
+    public boolean restore(PropertyEntry entry) {
+
+        String key = entry.getKey();
+
+        Lock lock = getStripe(key).writeLock();
+        lock.lock();
+        try {
+            PropertyEntry current = properties.get(key);
+
+            if (getKnownVersion(key) >= entry.getVersion())
+                return false;
+
+            if (entry.getValue() == null) {
+                properties.remove(key);
+                tombstones.put(key, entry.getVersion());
+            } else {
+                properties.put(key, entry);
+                tombstones.remove(key);
+            }
+
+            restoreSequence(entry.getVersion());
+
+            return current != null || entry.getValue() != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param key property key
+     * @return version of current value of a property or of its removal by restore (0 if unknown)
+     */
+    public long getKnownVersion(String key) {
+
+        PropertyEntry current = properties.get(key);
+        if (current != null)
+            return current.getVersion();
+
+        Long removedVersion = tombstones.get(key);
+        return (removedVersion != null) ? removedVersion : 0;
+    }
+
+    /**
+     * forget versions of removed properties once no older value can be restored anymore (end of journal restore or mirror bootstrap)
+     */
+    public void clearTombstones() {
+        tombstones.clear();
+    }
+
+    /**
+     * make sure next versions are greater than a persisted sequence number
+     *
+     * @param persistedSequence persisted sequence number
+     */
+    public void restoreSequence(long persistedSequence) {
+        long current;
+        while (persistedSequence > (current = sequence.get())) {
+            if (sequence.compareAndSet(current, persistedSequence))
+                break;
+        }
+    }
+
+    /**
+     * attach a journal persisting each change
+     *
+     * @param journal property journal
+     */
+    public void setJournal(PropertyJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * record each change in a history
+     *
+     * @param history change history
+     */
+    public void setHistory(ReplayBuffer history) {
+        this.history = history;
+    }
+
+    /**
+     * @return current entries (all stripes are read locked so that a commit is seen entirely or not at all)
+     */
+    public PropertyEntry[] getEntries() {
+
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.readLock().lock();
+        }
+        try {
+            return properties.values().toArray(new PropertyEntry[0]);
+        } finally {
+            for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+                stripes[i].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return all current properties in one batch
+     */
+    public PropertyBatch getAll() {
+
+        PropertyEntry[] entries = getEntries();
+
+        String[] keys = new String[entries.length];
+        String[] values = new String[entries.length];
+        long[] versions = new long[entries.length];
+
+        for (int i = 0; i < entries.length; i++) {
+            keys[i] = entries[i].getKey();
+            values[i] = entries[i].getValue();
+            versions[i] = entries[i].getVersion();
+        }
+        return new PropertyBatch(keys, values, versions);
+    }
+
+    /**
+     * retrieve a property value
+     *
+     * @param key          property key
+     * @param defaultValue value returned if property doesnt exist
+     * @return property value
+     */
+    public String get(String key, String defaultValue) {
+        PropertyEntry entry = properties.get(key);
+        return (entry != null) ? entry.getValue() : defaultValue;
+    }
+
+    /**
+     * retrieve a property entry
+     *
+     * @param key property key
+     * @return entry or null if property doesnt exist
+     */
+    public PropertyEntry getEntry(String key) {
+        return properties.get(key);
+    }
+
+    /**
+     * set all properties of a batch (each property is written independently, see commit for an atomic write)
+     *
+     * @param batch properties to set
+     * @return written entries
+     */
+    public PropertyEntry[] putAll(PropertyBatch batch) {
+        PropertyEntry[] entries = new PropertyEntry[batch.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = put(batch.getKey(i), batch.getValue(i));
+        }
+        return entries;
+    }
+
+    /**
+     * retrieve several properties at once
+     *
+     * @param keys property keys
+     * @return batch of values and versions (null value and version 0 for a property that doesnt exist)
+     */
+    public PropertyBatch getAll(String[] keys) {
+
+        String[] values = new String[keys.length];
+        long[] versions = new long[keys.length];
+
+        //several properties are read with their stripes locked so that a multi-key commit is seen entirely or not at all
+        int[] locked = (keys.length > 1) ? lockStripes(keys, false) : null;
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                PropertyEntry entry = properties.get(keys[i]);
+                if (entry != null) {
+                    values[i] = entry.getValue();
+                    versions[i] = entry.getVersion();
+                }
+            }
+        } finally {
+            if (locked != null)
+                unlockStripes(locked, false);
+        }
+        return new PropertyBatch(keys, values, versions);
+    }
+
+    /**
+     * @return sequence number of last change
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    public int size() {
+        return properties.size();
+    }
+}
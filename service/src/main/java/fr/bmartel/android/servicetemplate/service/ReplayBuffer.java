@@ -0,0 +1,359 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.SharedSnapshot;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Bounded history of recent changes replayed to listeners registered with a replay option
+ * <p/>
+ * Changes are not kept as objects : versions and lengths are stored in primitive arrays indexed by a ring of entry slots, keys and
+ * values are stored as UTF-8 in a direct byte buffer used as a ring. Oldest changes are evicted when either ring is full, so
+ * retained history costs no garbage collection work whatever its size
+ * <p/>
+ * Replay batches are bounded by their parcel size so that a oneway replay callback never exceeds binder transaction buffer
+ *
+ * @author Bertrand Martel
+ */
+public class ReplayBuffer {
+
+    /**
+     * value length of a removed property
+     */
+    private final static int NULL_VALUE = -1;
+
+    /**
+     * parcel size of a change besides its strings : 2 string lengths, 2 string terminators with padding, version
+     */
+    private final static int ENTRY_PARCEL_OVERHEAD = 4 + 4 + 8 + 8;
+
+    /**
+     * A replay : changes matching a subscription and version from which history is complete
+     */
+    public static class Replay {
+
+        private final PropertyBatch[] batches;
+
+        private final long completeFrom;
+
+        public Replay(PropertyBatch[] batches, long completeFrom) {
+            this.batches = batches;
+            this.completeFrom = completeFrom;
+        }
+
+        /**
+         * @return changes in the order they have been recorded, split in batches
+         */
+        public PropertyBatch[] getBatches() {
+            return batches;
+        }
+
+        /**
+         * @return lowest version from which all changes are retained (changes before it have been evicted)
+         */
+        public long getCompleteFrom() {
+            return completeFrom;
+        }
+    }
+
+    private final int entryCapacity;
+
+    private final long[] versions;
+
+    /**
+     * absolute position of entry data (key then value) in data ring
+     */
+    private final long[] dataPositions;
+
+    private final int[] keyLengths;
+
+    private final int[] valueLengths;
+
+    private final ByteBuffer data;
+
+    private final int dataCapacity;
+
+    /**
+     * max parcel size of a replay batch
+     */
+    private final int maxBatchBytes;
+
+    /**
+     * absolute index of oldest entry and of next entry (slot is index modulo entry capacity)
+     */
+    private long tail = 0;
+
+    private long head = 0;
+
+    /**
+     * absolute position of next byte written in data ring
+     */
+    private long dataEnd = 0;
+
+    /**
+     * lowest version from which no change has been evicted or skipped
+     */
+    private long completeFrom = 0;
+
+    /**
+     * @param entryCapacity max number of retained changes
+     * @param dataCapacity  size of data ring in bytes
+     * @param maxBatchBytes max parcel size of a replay batch
+     */
+    public ReplayBuffer(int entryCapacity, int dataCapacity, int maxBatchBytes) {
+        this.entryCapacity = entryCapacity;
+        this.dataCapacity = dataCapacity;
+        this.maxBatchBytes = maxBatchBytes;
+        versions = new long[entryCapacity];
+        dataPositions = new long[entryCapacity];
+        keyLengths = new int[entryCapacity];
+        valueLengths = new int[entryCapacity];
+        data = ByteBuffer.allocateDirect(dataCapacity);
+    }
+
+    /**
+     * record a change made out of a version sequence (mirrored change). A change larger than a quarter of data ring or than a
+     * replay batch is not retained : it is reported as a gap in history
+     *
+     * @param entry changed entry
+     */
+    public void append(PropertyEntry entry) {
+
+        byte[] key = entry.getKey().getBytes(SharedSnapshot.UTF8);
+        byte[] value = (entry.getValue() != null) ? entry.getValue().getBytes(SharedSnapshot.UTF8) : null;
+
+        synchronized (this) {
+            record(key, value, entry.getVersion());
+        }
+    }
+
+    /**
+     * take the version of a new change from a sequence and record it : changes taking their version here are recorded in version
+     * order
+     *
+     * @param key      property key
+     * @param value    property value (null if property is removed)
+     * @param sequence version sequence
+     * @return new entry
+     */
+    public PropertyEntry append(String key, String value, AtomicLong sequence) {
+
+        byte[] keyBytes = key.getBytes(SharedSnapshot.UTF8);
+        byte[] valueBytes = (value != null) ? value.getBytes(SharedSnapshot.UTF8) : null;
+
+        synchronized (this) {
+            PropertyEntry entry = new PropertyEntry(key, value, sequence.incrementAndGet());
+            record(keyBytes, valueBytes, entry.getVersion());
+            return entry;
+        }
+    }
+
+    /**
+     * record an encoded change (must be called with lock held)
+     */
+    private void record(byte[] key, byte[] value, long version) {
+
+        int length = key.length + ((value != null) ? value.length : 0);
+
+        if (length > dataCapacity / 4 || getParcelSize(key.length, (value != null) ? value.length : 0) > maxBatchBytes) {
+            completeFrom = Math.max(completeFrom, version + 1);
+            return;
+        }
+
+        //free entry slot and data space needed by new entry
+        while (tail < head && (head - tail >= entryCapacity || dataPositions[slot(tail)] < dataEnd + length - dataCapacity)) {
+            completeFrom = Math.max(completeFrom, versions[slot(tail)] + 1);
+            tail++;
+        }
+
+        int slot = slot(head);
+
+        versions[slot] = version;
+        dataPositions[slot] = dataEnd;
+        keyLengths[slot] = key.length;
+        valueLengths[slot] = (value != null) ? value.length : NULL_VALUE;
+
+        write(key);
+        if (value != null)
+            write(value);
+
+        head++;
+    }
+
+    /**
+     * upper bound of parcel size of a change : strings are marshalled as UTF-16, at most 2 bytes per UTF-8 byte
+     *
+     * @param keyLength   UTF-8 length of key
+     * @param valueLength UTF-8 length of value
+     * @return parcel size in bytes
+     */
+    private static int getParcelSize(int keyLength, int valueLength) {
+        return 2 * (keyLength + valueLength) + ENTRY_PARCEL_OVERHEAD;
+    }
+
+    /**
+     * read changes matching a subscription
+     *
+     * @param fromVersion lowest version to replay (negative : no version bound)
+     * @param last        max number of changes to replay, the most recent ones (0 : no limit)
+     * @param options     subscription whose key filter selects changes
+     * @param batchSize   max number of changes per batch (batches are also bounded by parcel size)
+     * @return matching changes
+     */
+    public synchronized Replay read(long fromVersion, int last, SubscriptionOptions options, int batchSize) {
+
+        int count = (int) (head - tail);
+
+        long[] matches = new long[count];
+        String[] keys = new String[count];
+        int matchCount = 0;
+
+        for (long index = tail; index < head; index++) {
+
+            int slot = slot(index);
+
+            if (versions[slot] < fromVersion)
+                continue;
+
+            String key = readString(dataPositions[slot], keyLengths[slot]);
+
+            if (SubscriptionIndex.matches(options, key)) {
+                matches[matchCount] = index;
+                keys[matchCount] = key;
+                matchCount++;
+            }
+        }
+
+        int start = (last > 0) ? Math.max(0, matchCount - last) : 0;
+
+        List<PropertyBatch> batches = new ArrayList<>();
+
+        int batchStart = start;
+        while (batchStart < matchCount) {
+
+            //batch ends at max count or before the change that would exceed max parcel size
+            int batchEnd = batchStart;
+            int batchBytes = 0;
+            while (batchEnd < matchCount && batchEnd - batchStart < batchSize) {
+                int slot = slot(matches[batchEnd]);
+                int size = getParcelSize(keyLengths[slot], Math.max(0, valueLengths[slot]));
+                if (batchEnd > batchStart && batchBytes + size > maxBatchBytes)
+                    break;
+                batchBytes += size;
+                batchEnd++;
+            }
+
+            int size = batchEnd - batchStart;
+
+            String[] batchKeys = new String[size];
+            String[] batchValues = new String[size];
+            long[] batchVersions = new long[size];
+
+            for (int j = 0; j < size; j++) {
+
+                int match = batchStart + j;
+                int slot = slot(matches[match]);
+
+                batchKeys[j] = keys[match];
+                batchVersions[j] = versions[slot];
+
+                if (valueLengths[slot] != NULL_VALUE)
+                    batchValues[j] = readString(dataPositions[slot] + keyLengths[slot], valueLengths[slot]);
+            }
+            batches.add(new PropertyBatch(batchKeys, batchValues, batchVersions));
+
+            batchStart = batchEnd;
+        }
+        return new Replay(batches.toArray(new PropertyBatch[batches.size()]), completeFrom);
+    }
+
+    /**
+     * @return number of retained changes
+     */
+    public synchronized int size() {
+        return (int) (head - tail);
+    }
+
+    /**
+     * @return number of bytes used by retained changes in data ring
+     */
+    public synchronized long getDataSize() {
+        return (tail < head) ? dataEnd - dataPositions[slot(tail)] : 0;
+    }
+
+    private int slot(long index) {
+        return (int) (index % entryCapacity);
+    }
+
+    /**
+     * append bytes at end of data ring (must be called with lock held)
+     *
+     * @param bytes bytes to be written
+     */
+    private void write(byte[] bytes) {
+
+        int offset = (int) (dataEnd % dataCapacity);
+        int first = Math.min(bytes.length, dataCapacity - offset);
+
+        data.position(offset);
+        data.put(bytes, 0, first);
+
+        if (first < bytes.length) {
+            data.position(0);
+            data.put(bytes, first, bytes.length - first);
+        }
+        dataEnd += bytes.length;
+    }
+
+    /**
+     * decode a string from data ring (must be called with lock held)
+     *
+     * @param position absolute position in data ring
+     * @param length   length in bytes
+     * @return decoded string
+     */
+    private String readString(long position, int length) {
+
+        byte[] bytes = new byte[length];
+
+        int offset = (int) (position % dataCapacity);
+        int first = Math.min(length, dataCapacity - offset);
+
+        data.position(offset);
+        data.get(bytes, 0, first);
+
+        if (first < length) {
+            data.position(0);
+            data.get(bytes, first, length - first);
+        }
+        return new String(bytes, SharedSnapshot.UTF8);
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.bmartel.android.servicetemplate.servicelib.IRequestCallback;
+
+/**
+ * Bounded executor running requests received through oneway binder methods, so that binder threads only validate and queue requests
+ * <p/>
+ * Admission control : a request is rejected right away when queue is full instead of waiting for a worker
+ * <p/>
+ * Requests of a caller (identified by its callback binder) run one at a time in the order they were received, requests of
+ * different callers run in parallel
+ *
+ * @author Bertrand Martel
+ */
+public class RequestPipeline {
+
+    private String TAG = RequestPipeline.class.getName();
+
+    /**
+     * A request processed by a pipeline worker. Result is sent to request callback
+     */
+    public static abstract class Request implements Runnable {
+
+        protected final long requestId;
+
+        protected final IRequestCallback callback;
+
+        private long enqueueTime = 0;
+
+        private ServiceMetrics metrics = null;
+
+        private RequestPipeline pipeline = null;
+
+        public Request(long requestId, IRequestCallback callback) {
+            this.requestId = requestId;
+            this.callback = callback;
+        }
+
+        /**
+         * process request and send its result to callback
+         *
+         * @throws RemoteException if callback failed
+         */
+        protected abstract void process() throws RemoteException;
+
+        @Override
+        public void run() {
+
+            metrics.recordRequestWait(System.nanoTime() - enqueueTime);
+
+            synchronized (pipeline.callerQueues) {
+                pipeline.queuedCount--;
+            }
+
+            try {
+                process();
+            } catch (RemoteException e) {
+                //client died, nobody waits for result
+            } catch (RuntimeException e) {
+                Log.e(Request.class.getName(), "request " + requestId + " failed", e);
+                sendError(callback, requestId, e.getMessage());
+            } finally {
+                pipeline.runNext(callback.asBinder());
+            }
+        }
+    }
+
+    private ThreadPoolExecutor executor = null;
+
+    private ServiceMetrics metrics = null;
+
+    /**
+     * requests waiting for the running request of their caller, by caller callback binder (a caller is present while one of its
+     * requests is queued or running)
+     */
+    private final HashMap<IBinder, ArrayDeque<Request>> callerQueues = new HashMap<>();
+
+    private final int queueCapacity;
+
+    /**
+     * number of requests not started yet (guarded by callerQueues)
+     */
+    private int queuedCount = 0;
+
+    /**
+     * @param workerCount   number of workers
+     * @param queueCapacity max number of queued requests
+     * @param metrics       service metrics
+     */
+    public RequestPipeline(int workerCount, int queueCapacity, ServiceMetrics metrics) {
+
+        this.metrics = metrics;
+        this.queueCapacity = queueCapacity;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        //executor queue holds at most one request per caller, queue capacity is checked on submit
+        executor = new ThreadPoolExecutor(workerCount, workerCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "request-" + threadCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * queue a request (called from a binder thread)
+     *
+     * @param request request to process
+     * @return false if request has been rejected because queue is full (callback has been notified)
+     */
+    public boolean submit(Request request) {
+
+        request.metrics = metrics;
+        request.pipeline = this;
+        request.enqueueTime = System.nanoTime();
+
+        IBinder caller = request.callback.asBinder();
+
+        synchronized (callerQueues) {
+
+            if (queuedCount >= queueCapacity) {
+                metrics.incrementRejectedRequests();
+                Log.e(TAG, "request " + request.requestId + " rejected : queue full");
+                sendError(request.callback, request.requestId, "service busy");
+                return false;
+            }
+
+            queuedCount++;
+
+            //a request of this caller is running : this one runs after it
+            ArrayDeque<Request> callerQueue = callerQueues.get(caller);
+            if (callerQueue != null) {
+                callerQueue.add(request);
+                return true;
+            }
+            callerQueues.put(caller, new ArrayDeque<Request>());
+        }
+        return execute(request);
+    }
+
+    /**
+     * run next request of a caller whose request has completed
+     *
+     * @param caller caller callback binder
+     */
+    private void runNext(IBinder caller) {
+
+        Request next;
+
+        synchronized (callerQueues) {
+            ArrayDeque<Request> callerQueue = callerQueues.get(caller);
+            next = (callerQueue != null) ? callerQueue.poll() : null;
+            if (next == null)
+                callerQueues.remove(caller);
+        }
+
+        //next request goes back to executor queue so that a busy caller doesnt hold a worker
+        if (next != null)
+            execute(next);
+    }
+
+    private boolean execute(Request request) {
+        try {
+            executor.execute(request);
+            return true;
+        } catch (RejectedExecutionException e) {
+            //pipeline is shut down
+            synchronized (callerQueues) {
+                queuedCount--;
+                callerQueues.remove(request.callback.asBinder());
+            }
+            sendError(request.callback, request.requestId, "service stopped");
+            return false;
+        }
+    }
+
+    private static void sendError(IRequestCallback callback, long requestId, String message) {
+        try {
+            callback.onError(requestId, message);
+        } catch (RemoteException e) {
+            //client died, nobody waits for result
+        }
+    }
+
+    /**
+     * @return number of requests waiting for a worker
+     */
+    public int getQueueSize() {
+        synchronized (callerQueues) {
+            return queuedCount;
+        }
+    }
+
+    /**
+     * stop workers : queued requests are discarded
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.bmartel.android.servicetemplate.servicelib.MetricsKeys;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Service hot path metrics : latency histograms and counters are recorded without allocation and gauges are computed
+ * from registry snapshot when metrics are read
+ *
+ * @author Bertrand Martel
+ */
+public class ServiceMetrics {
+
+    /**
+     * time spent dispatching a change to all matching listener channels
+     */
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    /**
+     * time an event waits in a listener channel before being sent (interactive lane)
+     */
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+    /**
+     * time an event waits in a listener channel before being sent (bulk lane)
+     */
+    private final LatencyHistogram bulkQueueLatency = new LatencyHistogram();
+
+    /**
+     * number of events dropped because they missed their deadline
+     */
+    private final AtomicLong deadlineDropCount = new AtomicLong();
+
+    /**
+     * duration of listener callbacks of all clients
+     */
+    private final LatencyHistogram callbackLatency = new LatencyHistogram();
+
+    /**
+     * duration of listener callbacks per client PID : one histogram is shared by all listeners of a client
+     */
+    private final ConcurrentHashMap<Integer, LatencyHistogram> clientCallbackLatency = new ConcurrentHashMap<>();
+
+    /**
+     * histogram reported for a client which has not received any callback yet
+     */
+    private final static LatencyHistogram EMPTY_HISTOGRAM = new LatencyHistogram();
+
+    private final AtomicLong remoteExceptionCount = new AtomicLong();
+
+    /**
+     * time a binder thread spends in a transaction of service binder
+     */
+    private final LatencyHistogram binderCallLatency = new LatencyHistogram();
+
+    /**
+     * number of binder threads currently in a transaction and highest value reached
+     */
+    private final AtomicInteger activeBinderCalls = new AtomicInteger();
+
+    private final AtomicInteger peakBinderCalls = new AtomicInteger();
+
+    /**
+     * time an asynchronous request waits for a pipeline worker
+     */
+    private final LatencyHistogram requestWaitLatency = new LatencyHistogram();
+
+    private final AtomicLong rejectedRequestCount = new AtomicLong();
+
+    /**
+     * number of listeners removed because their client died
+     */
+    private final AtomicLong reapedListenerCount = new AtomicLong();
+
+    /**
+     * number of client processes whose listeners have all been removed because they died
+     */
+    private final AtomicLong reapedClientCount = new AtomicLong();
+
+    private final AtomicLong shedListenerCount = new AtomicLong();
+
+    public void recordDispatch(long latencyNs) {
+        dispatchLatency.record(latencyNs);
+    }
+
+    public void recordQueueWait(int priority, long latencyNs) {
+        if (priority == SubscriptionOptions.PRIORITY_BULK)
+            bulkQueueLatency.record(latencyNs);
+        else
+            queueLatency.record(latencyNs);
+    }
+
+    public void incrementDeadlineDrops() {
+        deadlineDropCount.incrementAndGet();
+    }
+
+    /**
+     * record duration of a listener callback
+     *
+     * @param clientHistogram callback histogram of listener client (see getClientHistogram)
+     * @param latencyNs       callback duration in ns
+     */
+    public void recordCallback(LatencyHistogram clientHistogram, long latencyNs) {
+        callbackLatency.record(latencyNs);
+        clientHistogram.record(latencyNs);
+    }
+
+    /**
+     * get callback histogram of a client, created on first call. Looked up once when a listener channel is created so that
+     * recording a callback doesnt box the PID
+     *
+     * @param pid client PID
+     * @return histogram shared by all listeners of client
+     */
+    public LatencyHistogram getClientHistogram(int pid) {
+
+        LatencyHistogram histogram = clientCallbackLatency.get(pid);
+
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = clientCallbackLatency.putIfAbsent(pid, newHistogram);
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * get callback latency of a client
+     *
+     * @param pid client PID
+     * @return histogram of client callbacks (empty if client has not received any callback)
+     */
+    private LatencyHistogram getClientCallbackLatency(int pid) {
+        LatencyHistogram histogram = clientCallbackLatency.get(pid);
+        return (histogram != null) ? histogram : EMPTY_HISTOGRAM;
+    }
+
+    /**
+     * forget callback latency of clients which have no listener anymore
+     *
+     * @param snapshot registry snapshot
+     */
+    private void pruneClients(Map<Integer, ListenerList<ListenerChannel>> snapshot) {
+        clientCallbackLatency.keySet().retainAll(snapshot.keySet());
+    }
+
+    /**
+     * a binder thread enters a transaction
+     *
+     * @return start time to be given to exitBinderCall
+     */
+    public long enterBinderCall() {
+
+        int active = activeBinderCalls.incrementAndGet();
+
+        int peak;
+        while (active > (peak = peakBinderCalls.get())) {
+            if (peakBinderCalls.compareAndSet(peak, active))
+                break;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * a binder thread leaves a transaction
+     *
+     * @param start value returned by enterBinderCall
+     */
+    public void exitBinderCall(long start) {
+        binderCallLatency.record(System.nanoTime() - start);
+        activeBinderCalls.decrementAndGet();
+    }
+
+    public void recordRequestWait(long latencyNs) {
+        requestWaitLatency.record(latencyNs);
+    }
+
+    public void incrementRejectedRequests() {
+        rejectedRequestCount.incrementAndGet();
+    }
+
+    public void incrementRemoteExceptions() {
+        remoteExceptionCount.incrementAndGet();
+    }
+
+    public void incrementShedListeners() {
+        shedListenerCount.incrementAndGet();
+    }
+
+    public void incrementReapedListeners() {
+        reapedListenerCount.incrementAndGet();
+    }
+
+    /**
+     * @return number of clients reaped so far
+     */
+    public long incrementReapedClients() {
+        return reapedClientCount.incrementAndGet();
+    }
+
+    /**
+     * build metrics bundle
+     *
+     * @param snapshot     registry snapshot used for listener gauges
+     * @param pendingDrains number of channel drains waiting for a dispatch worker
+     * @param pendingRequests number of asynchronous requests waiting for a pipeline worker
+     * @return metrics (see {@link MetricsKeys})
+     */
+    public Bundle toBundle(Map<Integer, ListenerList<ListenerChannel>> snapshot, int pendingDrains, int pendingRequests) {
+
+        Bundle bundle = new Bundle();
+
+        pruneClients(snapshot);
+
+        bundle.putBundle(MetricsKeys.BINDER_CALL_LATENCY, binderCallLatency.toBundle());
+        bundle.putInt(MetricsKeys.ACTIVE_BINDER_CALLS, activeBinderCalls.get());
+        bundle.putInt(MetricsKeys.PEAK_BINDER_CALLS, peakBinderCalls.get());
+        bundle.putBundle(MetricsKeys.REQUEST_WAIT_LATENCY, requestWaitLatency.toBundle());
+        bundle.putInt(MetricsKeys.PENDING_REQUESTS, pendingRequests);
+        bundle.putLong(MetricsKeys.REJECTED_REQUESTS, rejectedRequestCount.get());
+
+        bundle.putBundle(MetricsKeys.DISPATCH_LATENCY, dispatchLatency.toBundle());
+        bundle.putBundle(MetricsKeys.QUEUE_LATENCY, queueLatency.toBundle());
+        bundle.putBundle(MetricsKeys.BULK_QUEUE_LATENCY, bulkQueueLatency.toBundle());
+        bundle.putLong(MetricsKeys.DEADLINE_DROPS, deadlineDropCount.get());
+        bundle.putBundle(MetricsKeys.CALLBACK_LATENCY, callbackLatency.toBundle());
+        bundle.putLong(MetricsKeys.REMOTE_EXCEPTIONS, remoteExceptionCount.get());
+        bundle.putLong(MetricsKeys.REAPED_LISTENERS, reapedListenerCount.get());
+        bundle.putLong(MetricsKeys.REAPED_CLIENTS, reapedClientCount.get());
+        bundle.putLong(MetricsKeys.SHED_LISTENERS, shedListenerCount.get());
+        bundle.putInt(MetricsKeys.PENDING_DRAINS, pendingDrains);
+        bundle.putInt(MetricsKeys.CLIENT_COUNT, snapshot.size());
+
+        Bundle clients = new Bundle();
+        int listenerCount = 0;
+
+        for (Map.Entry<Integer, ListenerList<ListenerChannel>> pidMap : snapshot.entrySet()) {
+
+            Bundle client = new Bundle();
+
+            int queueDepth = 0;
+            long dropped = 0;
+            int lag = 0;
+            int credits = 0;
+            long shed = 0;
+
+            List<ListenerChannel> channels = pidMap.getValue().getValues();
+
+            for (ListenerChannel channel : channels) {
+                queueDepth += channel.getQueueSize();
+                dropped += channel.getDroppedCount();
+                lag += channel.getLagSize();
+                credits += channel.getCredits();
+                shed += channel.getShedCount();
+            }
+            listenerCount += channels.size();
+
+            client.putInt(MetricsKeys.LISTENER_COUNT, channels.size());
+            client.putInt(MetricsKeys.QUEUE_DEPTH, queueDepth);
+            client.putLong(MetricsKeys.DROPPED, dropped);
+            client.putInt(MetricsKeys.LAG, lag);
+            client.putInt(MetricsKeys.CREDITS, credits);
+            client.putLong(MetricsKeys.SHED, shed);
+            client.putBundle(MetricsKeys.CALLBACK_LATENCY, getClientCallbackLatency(pidMap.getKey()).toBundle());
+
+            clients.putBundle(String.valueOf(pidMap.getKey()), client);
+        }
+
+        bundle.putInt(MetricsKeys.LISTENER_COUNT, listenerCount);
+        bundle.putBundle(MetricsKeys.CLIENTS, clients);
+
+        return bundle;
+    }
+
+    /**
+     * print metrics (dumpsys activity service output)
+     *
+     * @param writer        output
+     * @param snapshot      registry snapshot used for listener gauges
+     * @param pendingDrains number of channel drains waiting for a dispatch worker
+     * @param pendingRequests number of asynchronous requests waiting for a pipeline worker
+     */
+    public void dump(PrintWriter writer, Map<Integer, ListenerList<ListenerChannel>> snapshot, int pendingDrains, int pendingRequests) {
+
+        pruneClients(snapshot);
+
+        binderCallLatency.dump(writer, MetricsKeys.BINDER_CALL_LATENCY);
+        writer.println(MetricsKeys.ACTIVE_BINDER_CALLS + " : " + activeBinderCalls.get() + " (peak " + peakBinderCalls.get() + ")");
+        requestWaitLatency.dump(writer, MetricsKeys.REQUEST_WAIT_LATENCY);
+        writer.println(MetricsKeys.PENDING_REQUESTS + " : " + pendingRequests);
+        writer.println(MetricsKeys.REJECTED_REQUESTS + " : " + rejectedRequestCount.get());
+
+        dispatchLatency.dump(writer, MetricsKeys.DISPATCH_LATENCY);
+        queueLatency.dump(writer, MetricsKeys.QUEUE_LATENCY);
+        bulkQueueLatency.dump(writer, MetricsKeys.BULK_QUEUE_LATENCY);
+        callbackLatency.dump(writer, MetricsKeys.CALLBACK_LATENCY);
+
+        writer.println(MetricsKeys.DEADLINE_DROPS + " : " + deadlineDropCount.get());
+        writer.println(MetricsKeys.REMOTE_EXCEPTIONS + " : " + remoteExceptionCount.get());
+        writer.println(MetricsKeys.REAPED_LISTENERS + " : " + reapedListenerCount.get());
+        writer.println(MetricsKeys.REAPED_CLIENTS + " : " + reapedClientCount.get());
+        writer.println(MetricsKeys.SHED_LISTENERS + " : " + shedListenerCount.get());
+        writer.println(MetricsKeys.PENDING_DRAINS + " : " + pendingDrains);
+        writer.println(MetricsKeys.CLIENT_COUNT + " : " + snapshot.size());
+
+        for (Map.Entry<Integer, ListenerList<ListenerChannel>> pidMap : snapshot.entrySet()) {
+
+            writer.print("client " + pidMap.getKey() + " ");
+            getClientCallbackLatency(pidMap.getKey()).dump(writer, "callback");
+
+            for (ListenerChannel channel : pidMap.getValue().getValues()) {
+                writer.println("  listener " + ListenerList.formatId(channel.getListenerId()) + " queue=" + channel.getQueueSize() + " dropped=" + channel.getDroppedCount() + " lag=" + channel.getLagSize() + " credits=" + channel.getCredits() + " shed=" + channel.getShedCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import fr.bmartel.android.servicetemplate.servicelib.SharedSnapshot;
+
+/**
+ * Writer side of {@link SharedSnapshot} : region is a file of service private cache directory mapped in memory.
+ * Clients map the same pages read-only through a descriptor so that payload is never copied through binder.
+ *
+ * @author Bertrand Martel
+ */
+public class SnapshotWriter {
+
+    private File file = null;
+
+    private MappedByteBuffer buffer = null;
+
+    private long sequence = 0;
+
+    /**
+     * create and map snapshot region
+     *
+     * @param file     region file
+     * @param capacity max payload size
+     * @throws IOException
+     */
+    public SnapshotWriter(File file, int capacity) throws IOException {
+
+        this.file = file;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(SharedSnapshot.HEADER_SIZE + capacity);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SharedSnapshot.HEADER_SIZE + capacity);
+        } finally {
+            randomAccessFile.close();
+        }
+        //sequence is read and written with a single aligned access
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putLong(SharedSnapshot.SEQUENCE_OFFSET, sequence);
+        buffer.putInt(SharedSnapshot.LENGTH_OFFSET, 0);
+        buffer.putInt(SharedSnapshot.CHECKSUM_OFFSET, SharedSnapshot.checksum(new byte[0], 0, 0));
+    }
+
+    /**
+     * @return max payload size
+     */
+    public int getCapacity() {
+        return buffer.capacity() - SharedSnapshot.HEADER_SIZE;
+    }
+
+    /**
+     * publish a new snapshot
+     *
+     * @param payload snapshot data
+     * @param version property version
+     */
+    public synchronized void write(byte[] payload, long version) {
+
+        if (payload.length > getCapacity())
+            throw new IllegalArgumentException("snapshot too large : " + payload.length + " > " + getCapacity());
+
+        //odd sequence : readers retry until write is complete
+        buffer.putLong(SharedSnapshot.SEQUENCE_OFFSET, ++sequence);
+
+        //stores may become visible to readers in any order : checksum lets them reject a torn copy
+        buffer.putInt(SharedSnapshot.LENGTH_OFFSET, payload.length);
+        buffer.putInt(SharedSnapshot.CHECKSUM_OFFSET, SharedSnapshot.checksum(payload, payload.length, version));
+        buffer.putLong(SharedSnapshot.VERSION_OFFSET, version);
+        buffer.position(SharedSnapshot.HEADER_SIZE);
+        buffer.put(payload);
+
+        buffer.putLong(SharedSnapshot.SEQUENCE_OFFSET, ++sequence);
+    }
+
+    /**
+     * open a read-only descriptor on snapshot region
+     *
+     * @return descriptor to be sent to a client
+     * @throws FileNotFoundException
+     */
+    public ParcelFileDescriptor openReadOnly() throws FileNotFoundException {
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+}
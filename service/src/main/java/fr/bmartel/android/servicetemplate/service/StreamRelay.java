@@ -0,0 +1,225 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import fr.bmartel.android.servicetemplate.servicelib.FrameReader;
+import fr.bmartel.android.servicetemplate.servicelib.FrameWriter;
+
+/**
+ * Relay frames of a named stream from its producer pipe to the pipes of its consumers
+ * <p/>
+ * Frames are copied on a dedicated thread and never go through binder. Writes to consumer pipes are blocking : when a consumer
+ * pipe is full, relay stops reading producer pipe which in turn blocks producer (backpressure). A consumer closing its pipe is
+ * removed from the stream. Stream ends when producer closes its pipe.
+ *
+ * @author Bertrand Martel
+ */
+public class StreamRelay implements Runnable {
+
+    private String TAG = StreamRelay.class.getName();
+
+    /**
+     * called when a stream has ended
+     */
+    public interface IStreamListener {
+        void onStreamClosed(StreamRelay relay);
+    }
+
+    private final String name;
+
+    private final IStreamListener listener;
+
+    private final CopyOnWriteArrayList<FrameWriter> consumers = new CopyOnWriteArrayList<>();
+
+    private FrameReader producer = null;
+
+    /**
+     * read side of producer pipe, closed to wake up relay thread blocked on a read
+     */
+    private ParcelFileDescriptor producerSide = null;
+
+    /**
+     * PID of process which opened producer side
+     */
+    private int producerPid = 0;
+
+    private Thread thread = null;
+
+    private volatile boolean closed = false;
+
+    private long frameCount = 0;
+
+    public StreamRelay(String name, IStreamListener listener) {
+        this.name = name;
+        this.listener = listener;
+    }
+
+    /**
+     * attach producer and start relaying
+     *
+     * @param readSide read side of producer pipe
+     * @param pid      PID of producer process
+     * @return false if stream already has a producer or is closed
+     */
+    public synchronized boolean attachProducer(ParcelFileDescriptor readSide, int pid) {
+
+        if (closed || producer != null)
+            return false;
+
+        producerSide = readSide;
+        producerPid = pid;
+        producer = new FrameReader(readSide);
+        thread = new Thread(this, "stream-" + name);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * add a consumer, receiving frames produced from now on
+     *
+     * @param writeSide write side of consumer pipe
+     * @return false if stream is closed
+     */
+    public synchronized boolean addConsumer(ParcelFileDescriptor writeSide) {
+
+        if (closed)
+            return false;
+
+        consumers.add(new FrameWriter(writeSide));
+        return true;
+    }
+
+    /**
+     * check that a process is allowed to close this stream
+     *
+     * @param pid PID of calling process
+     * @return true if process opened producer side or if stream has no producer
+     */
+    public synchronized boolean canBeClosedBy(int pid) {
+        return producer == null || producerPid == pid;
+    }
+
+    /**
+     * close stream : consumers receive end of stream and producer gets an error on its next write
+     */
+    public synchronized void close() {
+
+        closed = true;
+
+        //consumer pipes are only written by relay thread
+        if (thread == null) {
+            closeConsumers();
+            return;
+        }
+
+        //relay thread may be blocked reading producer pipe : closing read side makes read fail
+        try {
+            producerSide.close();
+        } catch (IOException e) {
+            //pipe already closed
+        }
+    }
+
+    @Override
+    public void run() {
+
+        byte[] buffer = new byte[FrameWriter.MAX_FRAME_SIZE];
+
+        try {
+            int length;
+
+            while (!closed && (length = producer.readFrame(buffer)) >= 0) {
+
+                frameCount++;
+
+                //consumers are flushed once producer pipe is drained so that small frames are sent together
+                boolean flush = producer.available() == 0;
+
+                for (FrameWriter consumer : consumers) {
+                    try {
+                        consumer.writeFrame(buffer, 0, length);
+                        if (flush)
+                            consumer.flush();
+                    } catch (IOException e) {
+                        Log.i(TAG, "consumer of stream " + name + " closed");
+                        consumers.remove(consumer);
+                        closeQuietly(consumer);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (closed)
+                Log.i(TAG, "stream " + name + " closed");
+            else
+                Log.e(TAG, "stream " + name + " failed", e);
+        }
+
+        Log.i(TAG, "stream " + name + " ended after " + frameCount + " frames");
+
+        synchronized (this) {
+            closed = true;
+        }
+
+        closeQuietly(producer);
+        closeConsumers();
+
+        listener.onStreamClosed(this);
+    }
+
+    private void closeConsumers() {
+        ArrayList<FrameWriter> closedConsumers = new ArrayList<>(consumers);
+        consumers.clear();
+        for (FrameWriter consumer : closedConsumers) {
+            closeQuietly(consumer);
+        }
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //pipe already closed by peer
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getConsumerCount() {
+        return consumers.size();
+    }
+}
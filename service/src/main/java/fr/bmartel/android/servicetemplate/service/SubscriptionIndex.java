@@ -0,0 +1,205 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyKeys;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Immutable index of listener channels by property key, built from a registry snapshot
+ * <p/>
+ * Lookup cost depends on key length and on the number of matching channels, not on the total number of listeners.
+ * Filters of a channel are normalized so that a channel matches a key at most once
+ *
+ * @author Bertrand Martel
+ */
+public class SubscriptionIndex {
+
+    /**
+     * registry modification count this index has been built from
+     */
+    private final long registryVersion;
+
+    private HashMap<String, ArrayList<ListenerChannel>> keyIndex = new HashMap<>();
+
+    private HashMap<String, ArrayList<ListenerChannel>> prefixIndex = new HashMap<>();
+
+    private int maxPrefixLength = -1;
+
+    /**
+     * build index
+     *
+     * @param snapshot        registry snapshot
+     * @param registryVersion registry modification count of snapshot
+     */
+    public SubscriptionIndex(Map<Integer, ListenerList<ListenerChannel>> snapshot, long registryVersion) {
+
+        this.registryVersion = registryVersion;
+
+        for (ListenerList<ListenerChannel> listenerList : snapshot.values()) {
+            for (ListenerChannel channel : listenerList.getValues()) {
+                addChannel(channel);
+            }
+        }
+    }
+
+    private void addChannel(ListenerChannel channel) {
+
+        SubscriptionOptions options = channel.getOptions();
+
+        String[] keys = options.getKeys();
+        String[] prefixes = normalizePrefixes(options.getKeyPrefixes());
+
+        if (keys == null && prefixes.length == 0)
+            keys = new String[]{PropertyKeys.DEFAULT_KEY};
+
+        for (String prefix : prefixes) {
+            add(prefixIndex, prefix, channel);
+            maxPrefixLength = Math.max(maxPrefixLength, prefix.length());
+        }
+
+        if (keys != null) {
+            for (String key : keys) {
+                if (key != null && !matchesPrefix(key, prefixes))
+                    add(keyIndex, key, channel);
+            }
+        }
+    }
+
+    /**
+     * remove duplicate prefixes and prefixes covered by a shorter one
+     *
+     * @param prefixes key prefixes (may be null)
+     * @return normalized prefixes
+     */
+    private static String[] normalizePrefixes(String[] prefixes) {
+
+        if (prefixes == null)
+            return new String[0];
+
+        ArrayList<String> result = new ArrayList<>();
+
+        for (String prefix : prefixes) {
+
+            if (prefix == null || matchesPrefix(prefix, result.toArray(new String[result.size()])))
+                continue;
+
+            for (int i = result.size() - 1; i >= 0; i--) {
+                if (result.get(i).startsWith(prefix))
+                    result.remove(i);
+            }
+            result.add(prefix);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * check if filter of a subscription matches a key (used where no index is built, like replay)
+     *
+     * @param options subscription options
+     * @param key     property key
+     * @return true if a listener with these options is notified for this key
+     */
+    public static boolean matches(SubscriptionOptions options, String key) {
+
+        String[] keys = options.getKeys();
+        String[] prefixes = options.getKeyPrefixes();
+
+        boolean hasPrefix = false;
+
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                if (prefix == null)
+                    continue;
+                if (key.startsWith(prefix))
+                    return true;
+                hasPrefix = true;
+            }
+        }
+
+        if (keys == null)
+            return !hasPrefix && PropertyKeys.DEFAULT_KEY.equals(key);
+
+        for (String filterKey : keys) {
+            if (key.equals(filterKey))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesPrefix(String key, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static void add(HashMap<String, ArrayList<ListenerChannel>> index, String key, ListenerChannel channel) {
+        ArrayList<ListenerChannel> channels = index.get(key);
+        if (channels == null) {
+            channels = new ArrayList<>();
+            index.put(key, channels);
+        }
+        channels.add(channel);
+    }
+
+    /**
+     * retrieve channels whose filter matches a key
+     *
+     * @param key property key
+     * @return matching channels
+     */
+    public List<ListenerChannel> get(String key) {
+
+        List<ListenerChannel> exact = keyIndex.get(key);
+
+        if (maxPrefixLength < 0)
+            return (exact != null) ? exact : Collections.<ListenerChannel>emptyList();
+
+        ArrayList<ListenerChannel> result = new ArrayList<>();
+
+        if (exact != null)
+            result.addAll(exact);
+
+        int maxLength = Math.min(maxPrefixLength, key.length());
+
+        for (int length = 0; length <= maxLength; length++) {
+            ArrayList<ListenerChannel> channels = prefixIndex.get(key.substring(0, length));
+            if (channels != null)
+                result.addAll(channels);
+        }
+        return result;
+    }
+
+    public long getRegistryVersion() {
+        return registryVersion;
+    }
+}
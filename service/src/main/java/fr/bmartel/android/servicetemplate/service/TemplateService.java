@@ -25,19 +25,39 @@ package fr.bmartel.android.servicetemplate.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.IRequestCallback;
 import fr.bmartel.android.servicetemplate.servicelib.IServiceTemplate;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyKeys;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyValue;
+import fr.bmartel.android.servicetemplate.servicelib.SharedSnapshot;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
 
 /**
  * Service implementation
@@ -53,28 +73,163 @@ public class TemplateService extends Service {
      */
     private ScheduledThreadPoolExecutor threadPoolExecutor = null;
 
-    private String property = "";
+    /**
+     * property values
+     */
+    private PropertyStore propertyStore = new PropertyStore();
 
     private RandomGen randomGen = new RandomGen(15);
 
     /**
-     * list of listener identified by a specific PID
+     * list of listener channels identified by a specific PID
      */
-    private HashMap<Integer, ListenerList<IPropertyListener>> propertyListenerList = new HashMap<>();
+    private ListenerRegistry<ListenerChannel> propertyListenerList = new ListenerRegistry<>();
 
-    private ScheduledFuture<?> task = null;
+    /**
+     * fan-out engine delivering values to listener channels
+     */
+    private DispatchEngine dispatchEngine = null;
 
-    static {
-        System.loadLibrary("pidutils");
-    }
+    /**
+     * optional heartbeat setting a new random value periodically (null if disabled)
+     */
+    private ScheduledFuture<?> heartbeatTask = null;
 
     /**
-     * function used to know if PID exists or not
-     *
-     * @param pid process id
-     * @return true if process exists / false if dont exist
+     * start intent extra : heartbeat period in ms (0 to disable heartbeat, disabled by default)
+     */
+    public final static String EXTRA_HEARTBEAT_PERIOD = "heartbeatPeriod";
+
+    /**
+     * single thread dispatching pending changes to listener channels
+     */
+    private ThreadPoolExecutor dispatchExecutor = null;
+
+    /**
+     * true when a dispatch of pending changes has been submitted and not started yet
+     */
+    private AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+
+    /**
+     * true when service is destroyed : binder calls still in flight must not schedule tasks on stopped executors
+     */
+    private volatile boolean destroyed = false;
+
+    /**
+     * dispatch pending changes (executed on dispatch executor)
+     */
+    private Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            //changes made from now on schedule a new dispatch
+            dispatchScheduled.set(false);
+            dispatchPendingChanges();
+        }
+    };
+
+    /**
+     * values whose UTF-8 size reaches this threshold are published in shared snapshot region instead of binder transaction
+     */
+    private final static int SNAPSHOT_THRESHOLD = 64 * 1024;
+
+    /**
+     * max size of a value published in shared snapshot region
+     */
+    private final static int SNAPSHOT_CAPACITY = 1024 * 1024;
+
+    private final static String SNAPSHOT_FILE = "property_snapshot";
+
+    /**
+     * shared snapshot region (null if it couldnt be created)
+     */
+    private SnapshotWriter snapshotWriter = null;
+
+    private final static String JOURNAL_DIRECTORY = "properties";
+
+    /**
+     * size of journal file (compacted in a snapshot when full)
+     */
+    private final static int JOURNAL_CAPACITY = 4 * 1024 * 1024;
+
+    /**
+     * period of journal compaction check and flush in seconds
+     */
+    private final static int JOURNAL_COMPACTION_PERIOD = 60;
+
+    /**
+     * number of workers processing asynchronous requests
+     */
+    private final static int REQUEST_WORKERS = 2;
+
+    /**
+     * max number of asynchronous requests waiting for a worker before new requests are rejected
+     */
+    private final static int REQUEST_QUEUE_CAPACITY = 128;
+
+    /**
+     * max number of recent changes retained for replay
+     */
+    private final static int REPLAY_CAPACITY = 4096;
+
+    /**
+     * size of off-heap region holding keys and values of retained changes
+     */
+    private final static int REPLAY_DATA_CAPACITY = 512 * 1024;
+
+    /**
+     * max number of changes sent in one replay callback
+     */
+    private final static int REPLAY_BATCH = 64;
+
+    /**
+     * max parcel size of one replay callback (oneway transactions share a binder buffer of 1MB with other calls)
+     */
+    private final static int REPLAY_BATCH_BYTES = 64 * 1024;
+
+    /**
+     * journal persisting property store (null if it couldnt be opened)
+     */
+    private PropertyJournal propertyJournal = null;
+
+    /**
+     * index of listener channels by property key (rebuilt when registry is modified)
+     */
+    private volatile SubscriptionIndex subscriptionIndex = null;
+
+    /**
+     * last change of each property not yet dispatched
      */
-    private native boolean nativeIsPid(int pid);
+    private ConcurrentHashMap<String, PropertyEntry> pendingChanges = new ConcurrentHashMap<>();
+
+    /**
+     * binary streams by name
+     */
+    private ConcurrentHashMap<String, StreamRelay> streams = new ConcurrentHashMap<>();
+
+    /**
+     * remove a stream once its producer has closed it
+     */
+    private StreamRelay.IStreamListener streamListener = new StreamRelay.IStreamListener() {
+        @Override
+        public void onStreamClosed(StreamRelay relay) {
+            streams.remove(relay.getName(), relay);
+        }
+    };
+
+    /**
+     * hot path metrics (see getMetrics and dumpsys activity service)
+     */
+    private ServiceMetrics metrics = new ServiceMetrics();
+
+    /**
+     * workers processing asynchronous requests so that binder threads are released as soon as request is queued
+     */
+    private RequestPipeline requestPipeline = null;
+
+    /**
+     * recent changes replayed to listeners registered with a replay option
+     */
+    private ReplayBuffer replayBuffer = new ReplayBuffer(REPLAY_CAPACITY, REPLAY_DATA_CAPACITY, REPLAY_BATCH_BYTES);
 
     @Override
     public void onCreate() {
@@ -83,16 +238,24 @@ public class TemplateService extends Service {
 
         threadPoolExecutor = new ScheduledThreadPoolExecutor(1);
 
-        //dispatch listener every 2 seconds for testing
-        task = threadPoolExecutor.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
+        //local changes are recorded in history when they take their version
+        propertyStore.setHistory(replayBuffer);
 
-                property = randomGen.nextString();
-                dispatchPropertyListener(property);
+        dispatchEngine = new DispatchEngine(metrics);
 
-            }
-        }, 0, 2, TimeUnit.SECONDS);
+        requestPipeline = new RequestPipeline(REQUEST_WORKERS, REQUEST_QUEUE_CAPACITY, metrics);
+
+        try {
+            snapshotWriter = new SnapshotWriter(new File(getCacheDir(), getSnapshotFileName()), SNAPSHOT_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "shared snapshot region not available. Listeners will read large values with getProperties", e);
+        }
+
+        //changes are dispatched as soon as they are made, idle dispatcher thread is released
+        dispatchExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        dispatchExecutor.allowCoreThreadTimeOut(true);
+
+        openPropertyStore();
 
         Log.i(TAG, "create template service");
     }
@@ -102,9 +265,93 @@ public class TemplateService extends Service {
         super.onDestroy();
         Log.i(TAG, "destroy template service");
 
-        if (task != null)
-            task.cancel(true);
+        destroyed = true;
+
+        stopHeartbeat();
+
+        for (StreamRelay relay : streams.values()) {
+            relay.close();
+        }
+        streams.clear();
+
+        dispatchExecutor.shutdown();
+
+        requestPipeline.shutdown();
+
+        if (dispatchEngine != null)
+            dispatchEngine.shutdown();
+
+        if (propertyJournal != null)
+            propertyJournal.flush();
+
+        threadPoolExecutor.shutdown();
+    }
+
+    /**
+     * Fill property store when service is created. Primary instance restores persisted values, a shard overrides this to mirror primary
+     */
+    protected void openPropertyStore() {
+        restorePropertyStore();
+    }
+
+    /**
+     * @return name of shared snapshot region file (each process needs its own region)
+     */
+    protected String getSnapshotFileName() {
+        return SNAPSHOT_FILE;
+    }
+
+    /**
+     * @return property store of this instance
+     */
+    protected PropertyStore getPropertyStore() {
+        return propertyStore;
+    }
+
+    /**
+     * run a task on service task scheduler
+     *
+     * @param task task to run
+     */
+    protected void runTask(Runnable task) {
+
+        if (destroyed)
+            return;
+
+        try {
+            threadPoolExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.i(TAG, "task dropped : service destroyed");
+        }
+    }
+
+    /**
+     * Restore property values persisted before service restart and attach journal to property store
+     */
+    private void restorePropertyStore() {
+
+        long start = System.nanoTime();
 
+        try {
+            propertyJournal = new PropertyJournal(new File(getFilesDir(), JOURNAL_DIRECTORY), JOURNAL_CAPACITY);
+            propertyJournal.restore(propertyStore);
+            propertyJournal.setCompactionExecutor(threadPoolExecutor);
+            propertyStore.setJournal(propertyJournal);
+        } catch (IOException e) {
+            Log.e(TAG, "property journal not available. Properties wont be persisted", e);
+            propertyJournal = null;
+            return;
+        }
+
+        Log.i(TAG, "restored " + propertyStore.size() + " properties in " + ((System.nanoTime() - start) / 1000) + "us");
+
+        threadPoolExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                propertyJournal.compactIfNeeded();
+                propertyJournal.flush();
+            }
+        }, JOURNAL_COMPACTION_PERIOD, JOURNAL_COMPACTION_PERIOD, TimeUnit.SECONDS);
     }
 
     /**
@@ -112,20 +359,159 @@ public class TemplateService extends Service {
      */
     private IServiceTemplate.Stub templateService = new IServiceTemplate.Stub() {
 
-        public void setProperty(String value) {
-            TemplateService.this.property = value;
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            long start = metrics.enterBinderCall();
+            try {
+                return super.onTransact(code, data, reply, flags);
+            } finally {
+                metrics.exitBinderCall(start);
+            }
+        }
+
+        public void setProperty(String value) throws RemoteException {
+            writeProperty(PropertyKeys.DEFAULT_KEY, value);
         }
 
         public String getProperty() {
-            return property;
+            return propertyStore.get(PropertyKeys.DEFAULT_KEY, "");
+        }
+
+        public void setTypedProperty(String key, PropertyValue value) throws RemoteException {
+            if (key == null || value == null)
+                throw new IllegalArgumentException("key and value are required");
+            if (value.getType() == PropertyValue.TYPE_BYTES)
+                throw new IllegalArgumentException("bytes values are not supported by property store");
+            writeProperty(key, value.toString());
+        }
+
+        public PropertyValue getTypedProperty(String key) {
+            return new PropertyValue().setUtf8(propertyStore.get(key, null));
+        }
+
+        public void setProperties(PropertyBatch properties) throws RemoteException {
+            writeProperties(properties);
+        }
+
+        public PropertyBatch getProperties(String[] keys) {
+            return propertyStore.getAll(keys);
+        }
+
+        public long compareAndSet(String key, long expectedVersion, String value) throws RemoteException {
+            return compareAndSetProperty(key, expectedVersion, value);
+        }
+
+        public boolean commit(PropertyBatch properties) throws RemoteException {
+            return commitProperties(properties);
+        }
+
+        public void setPropertiesAsync(long requestId, final PropertyBatch properties, IRequestCallback callback) {
+            if (callback == null || properties == null)
+                return;
+            requestPipeline.submit(new RequestPipeline.Request(requestId, callback) {
+                @Override
+                protected void process() throws RemoteException {
+                    writeProperties(properties);
+                    callback.onCompleted(requestId, properties.size());
+                }
+            });
+        }
+
+        public void getPropertiesAsync(long requestId, final String[] keys, IRequestCallback callback) {
+            if (callback == null || keys == null)
+                return;
+            requestPipeline.submit(new RequestPipeline.Request(requestId, callback) {
+                @Override
+                protected void process() throws RemoteException {
+                    callback.onProperties(requestId, propertyStore.getAll(keys));
+                }
+            });
+        }
+
+        public void compareAndSetAsync(long requestId, final String key, final long expectedVersion, final String value,
+                                       IRequestCallback callback) {
+            if (callback == null || key == null)
+                return;
+            requestPipeline.submit(new RequestPipeline.Request(requestId, callback) {
+                @Override
+                protected void process() throws RemoteException {
+                    callback.onCompleted(requestId, compareAndSetProperty(key, expectedVersion, value));
+                }
+            });
+        }
+
+        public void commitAsync(long requestId, final PropertyBatch properties, IRequestCallback callback) {
+            if (callback == null || properties == null)
+                return;
+            requestPipeline.submit(new RequestPipeline.Request(requestId, callback) {
+                @Override
+                protected void process() throws RemoteException {
+                    callback.onCompleted(requestId, commitProperties(properties) ? 1 : 0);
+                }
+            });
+        }
+
+        public PropertyBatch getAllProperties() {
+            return propertyStore.getAll();
+        }
+
+        public ParcelFileDescriptor getSnapshotDescriptor() {
+            if (snapshotWriter == null)
+                return null;
+            try {
+                return snapshotWriter.openReadOnly();
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        public ParcelFileDescriptor openStreamWriter(String streamName) throws RemoteException {
+            return openStreamDescriptor(streamName, true, getCallingPid());
+        }
+
+        public ParcelFileDescriptor openStreamReader(String streamName) throws RemoteException {
+            return openStreamDescriptor(streamName, false, getCallingPid());
+        }
+
+        public void closeStream(String streamName) throws RemoteException {
+            closeStreamByName(streamName, getCallingPid());
         }
 
         public String registerListener(IPropertyListener listener) {
-            return registerPropertyListener(listener, getCallingPid());
+            return registerPropertyListener(listener, new SubscriptionOptions(), getCallingPid());
+        }
+
+        public String registerListenerWithOptions(IPropertyListener listener, SubscriptionOptions options) {
+            if (options == null)
+                options = new SubscriptionOptions();
+            //options unmarshalled from a parcel are already validated, not those of an in-process caller
+            options.validate();
+            return registerPropertyListener(listener, options, getCallingPid());
+        }
+
+        public Bundle getMetrics() {
+            return metrics.toBundle(propertyListenerList.getSnapshot(), dispatchEngine.getPendingDrains(), requestPipeline.getQueueSize());
+        }
+
+        public void acknowledge(String listenerId, IPropertyListener listener, long version) {
+            if (listener == null)
+                return;
+            ListenerChannel channel = ListenerChannel.find(propertyListenerList.getSnapshot(), ListenerList.parseId(listenerId), listener.asBinder());
+            if (channel != null)
+                channel.acknowledge(version);
+        }
+
+        public void grantCredits(String listenerId, IPropertyListener listener, int credits) {
+            if (listener == null)
+                return;
+            ListenerChannel channel = ListenerChannel.find(propertyListenerList.getSnapshot(), ListenerList.parseId(listenerId), listener.asBinder());
+            if (channel != null)
+                channel.grantCredits(credits);
         }
 
         public void removeListener(String listenerId) {
-            removeListenerById(listenerId, getCallingPid());
+            removeListenerById(ListenerList.parseId(listenerId), getCallingPid());
         }
 
         public void removeListeners() {
@@ -133,64 +519,402 @@ public class TemplateService extends Service {
         }
     };
 
+    /**
+     * Open a pipe on a named stream of this service
+     *
+     * @param streamName stream name
+     * @param producer   true to open producer side, false to open a consumer side
+     * @param callingPid PID of application that called binder
+     * @return pipe side to be sent to client or null if not available
+     * @throws RemoteException
+     */
+    protected ParcelFileDescriptor openStreamDescriptor(String streamName, boolean producer, int callingPid) throws RemoteException {
+        try {
+            return openStream(streamName, producer, callingPid);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Close a named stream of this service. Only application which opened producer side can close a stream
+     *
+     * @param streamName stream name
+     * @param callingPid PID of application that called binder
+     * @throws RemoteException
+     */
+    protected void closeStreamByName(String streamName, int callingPid) throws RemoteException {
+
+        StreamRelay relay = streams.get(streamName);
+
+        if (relay == null)
+            return;
+
+        if (!relay.canBeClosedBy(callingPid))
+            throw new SecurityException("stream " + streamName + " can only be closed by its producer");
+
+        if (streams.remove(streamName, relay))
+            relay.close();
+    }
+
+    /**
+     * Open a pipe on a named stream (stream is created if it doesnt exist)
+     *
+     * @param streamName stream name
+     * @param producer   true to open producer side, false to open a consumer side
+     * @param callingPid PID of application that called binder
+     * @return pipe side to be sent to client or null if stream already has a producer
+     * @throws IOException if pipe cant be created
+     */
+    private ParcelFileDescriptor openStream(String streamName, boolean producer, int callingPid) throws IOException {
+
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+
+        while (true) {
+
+            StreamRelay relay = streams.get(streamName);
+
+            if (relay == null) {
+                relay = new StreamRelay(streamName, streamListener);
+                StreamRelay existing = streams.putIfAbsent(streamName, relay);
+                if (existing != null)
+                    relay = existing;
+            }
+
+            //read side stays in service for producer, write side for consumer
+            boolean attached = producer ? relay.attachProducer(pipe[0], callingPid) : relay.addConsumer(pipe[1]);
+
+            if (attached)
+                return producer ? pipe[1] : pipe[0];
+
+            if (producer && !relay.isClosed()) {
+                Log.e(TAG, "stream " + streamName + " already has a producer");
+                pipe[0].close();
+                pipe[1].close();
+                return null;
+            }
+
+            //stream ended concurrently
+            streams.remove(streamName, relay);
+        }
+    }
+
     /**
      * Register a listener
      *
      * @param listener   listener to be registered
+     * @param options    delivery options
      * @param callingPid PID of application that called binder
      * @return listener identifier
      */
-    private String registerPropertyListener(IPropertyListener listener, int callingPid) {
+    private String registerPropertyListener(IPropertyListener listener, SubscriptionOptions options, final int callingPid) {
+
+        final ListenerChannel channel = dispatchEngine.createChannel(callingPid, listener, options);
+
+        final long listenerId = propertyListenerList.add(callingPid, channel);
+        channel.setListenerId(listenerId);
+
+        //listener is removed once when its binder dies instead of checking PID on each dispatch
+        IBinder.DeathRecipient deathRecipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {
+                reapListener(listenerId, callingPid, channel);
+            }
+        };
+
+        try {
+            channel.linkToDeath(deathRecipient);
+        } catch (RemoteException e) {
+            //client already dead
+            reapListener(listenerId, callingPid, channel);
+        }
+
+        //channel is registered before history is read : a change made meanwhile is either replayed or notified (maybe both, same version)
+        if (options.isReplay())
+            channel.offerReplay(replayBuffer.read(options.getReplayFromVersion(), options.getReplayLast(), options, REPLAY_BATCH));
+
+        return ListenerList.formatId(listenerId);
+    }
+
+    /**
+     * Remove a listener whose client died
+     *
+     * @param listenerId listener identifier
+     * @param pid        process id that created that listener
+     * @param channel    listener channel
+     */
+    private void reapListener(long listenerId, int pid, ListenerChannel channel) {
+
+        channel.close();
+
+        if (propertyListenerList.remove(pid, listenerId) != null) {
+
+            metrics.incrementReapedListeners();
+
+            if (!propertyListenerList.getSnapshot().containsKey(pid)) {
+                long reapedClientCount = metrics.incrementReapedClients();
+                Log.i(TAG, "process " + pid + " doesnt exist anymore. All listeners associated to it removed (" + reapedClientCount + " clients reaped)");
+            }
+        }
+    }
+
+    /**
+     * Start or restart heartbeat
+     *
+     * @param periodMs period in ms
+     */
+    private synchronized void startHeartbeat(long periodMs) {
 
-        String listenerId = "";
+        stopHeartbeat();
 
-        if (propertyListenerList.containsKey(callingPid)) {
+        Log.i(TAG, "heartbeat every " + periodMs + "ms");
 
-            ListenerList<IPropertyListener> listenerList = propertyListenerList.get(callingPid);
-            listenerId = listenerList.add(listener);
+        heartbeatTask = threadPoolExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeProperty(PropertyKeys.DEFAULT_KEY, randomGen.nextString());
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
 
-        } else {
+    private synchronized void stopHeartbeat() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+    }
 
-            ListenerList<IPropertyListener> listenerList = new ListenerList<>();
-            listenerId = listenerList.add(listener);
-            propertyListenerList.put(callingPid, listenerList);
+    /**
+     * Write a property value requested by a client. A shard overrides this to forward the write to primary instance
+     *
+     * @param key   property key
+     * @param value property value (null to remove property)
+     * @throws RemoteException
+     */
+    protected void writeProperty(String key, String value) throws RemoteException {
+        setPropertyValue(key, value);
+    }
 
+    /**
+     * Write property values requested by a client. A shard overrides this to forward the write to primary instance
+     *
+     * @param properties property values (null value to remove a property)
+     * @throws RemoteException
+     */
+    protected void writeProperties(PropertyBatch properties) throws RemoteException {
+        for (PropertyEntry entry : propertyStore.putAll(properties)) {
+            publishChange(entry);
         }
-        return listenerId;
     }
 
     /**
-     * Dispatch a value in complete list of listeners
+     * Set a property value if its current version is the expected one. A shard overrides this to forward the write to primary instance
      *
-     * @param value value to be dispatched
+     * @param key             property key
+     * @param expectedVersion expected version (0 if property must not exist)
+     * @param value           property value (null to remove property)
+     * @return new version or 0 if property has been modified
+     * @throws RemoteException
      */
-    private void dispatchPropertyListener(String value) {
+    protected long compareAndSetProperty(String key, long expectedVersion, String value) throws RemoteException {
+
+        PropertyEntry entry = propertyStore.compareAndSet(key, expectedVersion, value);
+
+        if (entry == null)
+            return 0;
+
+        publishChange(entry);
+        return entry.getVersion();
+    }
+
+    /**
+     * Set all properties of a batch atomically if they all have their expected version. A shard overrides this to forward the
+     * write to primary instance
+     *
+     * @param properties property values with their expected version
+     * @return false if a property has been modified
+     * @throws RemoteException
+     */
+    protected boolean commitProperties(PropertyBatch properties) throws RemoteException {
+
+        PropertyEntry[] entries = propertyStore.commit(properties);
+
+        if (entries == null)
+            return false;
+
+        for (PropertyEntry entry : entries) {
+            publishChange(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Apply a property entry keeping its version (mirrored from primary instance) and dispatch it if it is newer than current value
+     *
+     * @param entry property entry
+     */
+    protected void applyPropertyEntry(PropertyEntry entry) {
+        if (propertyStore.restore(entry)) {
+            replayBuffer.append(entry);
+            publishChange(entry);
+        }
+    }
+
+    /**
+     * Set a property value in store and schedule dispatch of the change
+     *
+     * @param key   property key
+     * @param value property value (null to remove property)
+     */
+    private void setPropertyValue(String key, String value) {
+        publishChange(propertyStore.put(key, value));
+    }
+
+    /**
+     * Schedule dispatch of a change
+     *
+     * @param entry changed entry
+     */
+    private void publishChange(PropertyEntry entry) {
+
+        String key = entry.getKey();
+
+        //only the last change of a property is kept
+        while (true) {
+            PropertyEntry pending = pendingChanges.putIfAbsent(key, entry);
+            if (pending == null || pending.getVersion() >= entry.getVersion() || pendingChanges.replace(key, pending, entry))
+                break;
+        }
+
+        //changes made before dispatcher runs are dispatched together
+        if (destroyed || !dispatchScheduled.compareAndSet(false, true))
+            return;
 
         try {
-            Iterator it = propertyListenerList.entrySet().iterator();
+            dispatchExecutor.execute(dispatchTask);
+        } catch (RejectedExecutionException e) {
+            //change is persisted in store, there is no listener left to notify
+            Log.i(TAG, "dispatch dropped : service destroyed");
+        }
+    }
+
+    /**
+     * order of entries by version (versions of all properties come from the same sequence)
+     */
+    private final static Comparator<PropertyEntry> VERSION_ORDER = new Comparator<PropertyEntry>() {
+        @Override
+        public int compare(PropertyEntry lhs, PropertyEntry rhs) {
+            return (lhs.getVersion() < rhs.getVersion()) ? -1 : ((lhs.getVersion() == rhs.getVersion()) ? 0 : 1);
+        }
+    };
 
-            while (it.hasNext()) {
-                Map.Entry<Integer, ListenerList<IPropertyListener>> pidMap = (Map.Entry) it.next();
+    /**
+     * Dispatch all pending changes in version order : pending map iterates in hash order, so a listener could otherwise see a
+     * change of a property before an older change of another one
+     */
+    private void dispatchPendingChanges() {
+
+        ArrayList<PropertyEntry> changes = new ArrayList<>(pendingChanges.size());
 
-                ListenerList<IPropertyListener> listenersList = pidMap.getValue();
+        for (PropertyEntry entry : pendingChanges.values()) {
+            if (pendingChanges.remove(entry.getKey(), entry))
+                changes.add(entry);
+        }
+
+        Collections.sort(changes, VERSION_ORDER);
 
-                if (listenersList != null) {
+        for (int i = 0; i < changes.size(); i++) {
+            dispatchPropertyListener(changes.get(i));
+        }
+    }
+
+    /**
+     * Dispatch a value to listeners whose filter matches its key : value is queued in each listener channel and delivered by dispatch engine workers
+     *
+     * @param entry property entry to be dispatched
+     */
+    private void dispatchPropertyListener(PropertyEntry entry) {
 
-                    if (nativeIsPid(pidMap.getKey())) {
+        long start = System.nanoTime();
 
-                        Iterator it2 = listenersList.getMap().entrySet().iterator();
-                        while (it2.hasNext()) {
-                            Map.Entry<String, IPropertyListener> listenerMap = (Map.Entry) it2.next();
-                            listenerMap.getValue().onPropertyChange(value);
-                        }
-                    } else {
-                        Log.i(TAG, "process " + pidMap.getKey() + " doesnt exist anymore. Removing all listeners associated to it.");
-                        it.remove();
-                    }
+        List<ListenerChannel> channels = getSubscriptionIndex().get(entry.getKey());
+
+        if (channels.isEmpty())
+            return;
+
+        PropertyEvent event = buildEvent(entry);
+
+        for (int i = 0; i < channels.size(); i++) {
+
+            ListenerChannel channel = channels.get(i);
+
+            //a failed callback only closes its own channel
+            if (!channel.offer(event))
+                propertyListenerList.remove(channel.getPid(), channel.getListenerId());
+        }
+
+        metrics.recordDispatch(System.nanoTime() - start);
+    }
+
+    /**
+     * get index of listener channels by key, rebuilt from registry snapshot if registry has been modified
+     *
+     * @return subscription index
+     */
+    private SubscriptionIndex getSubscriptionIndex() {
+
+        SubscriptionIndex index = subscriptionIndex;
+        long registryVersion = propertyListenerList.getModificationCount();
+
+        if (index == null || index.getRegistryVersion() != registryVersion) {
+            index = new SubscriptionIndex(propertyListenerList.getSnapshot(), registryVersion);
+            subscriptionIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Build event to be dispatched : a large value is never marshalled in a callback. A large default property value is written once
+     * in shared snapshot region, listeners of any other large value are only told to read it
+     *
+     * @param entry property entry
+     * @return event to be dispatched
+     */
+    private PropertyEvent buildEvent(PropertyEntry entry) {
+
+        String value = entry.getValue();
+
+        //UTF-8 size is at most 3 bytes per char
+        if (value != null && value.length() * 3 >= SNAPSHOT_THRESHOLD) {
+
+            byte[] payload = value.getBytes(SharedSnapshot.UTF8);
+
+            if (payload.length >= SNAPSHOT_THRESHOLD) {
+
+                //snapshot region holds the default property only : other keys would overwrite it
+                if (snapshotWriter != null && PropertyKeys.DEFAULT_KEY.equals(entry.getKey()) && payload.length <= snapshotWriter.getCapacity()) {
+                    snapshotWriter.write(payload, entry.getVersion());
+                    return PropertyEvent.snapshot(entry, payload.length);
                 }
+                return PropertyEvent.large(entry, payload.length);
             }
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        }
+        return PropertyEvent.value(entry);
+    }
+
+    /**
+     * close all channels of a listener list
+     *
+     * @param listenerList list of listener channels
+     */
+    private void closeChannels(ListenerList<ListenerChannel> listenerList) {
+        for (ListenerChannel channel : listenerList.getValues()) {
+            channel.close();
         }
     }
 
@@ -200,19 +924,12 @@ public class TemplateService extends Service {
      * @param listenerId listener identifier
      * @param pid        process id that created that listener
      */
-    private void removeListenerById(String listenerId, int pid) {
+    private void removeListenerById(long listenerId, int pid) {
 
-        if (propertyListenerList.containsKey(pid)) {
+        ListenerChannel channel = propertyListenerList.remove(pid, listenerId);
 
-            ListenerList<IPropertyListener> listenerList = propertyListenerList.get(pid);
-
-            Iterator it = listenerList.getMap().entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, IPropertyListener> listenerMap = (Map.Entry) it.next();
-                if (listenerMap.getKey().equals(listenerId))
-                    it.remove();
-            }
-        }
+        if (channel != null)
+            channel.close();
     }
 
     /**
@@ -221,7 +938,16 @@ public class TemplateService extends Service {
      * @param pid
      */
     private void removeAllListener(int pid) {
-        propertyListenerList.remove(pid);
+        ListenerList<ListenerChannel> listenerList = propertyListenerList.removeAll(pid);
+        if (listenerList != null)
+            closeChannels(listenerList);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("properties : " + propertyStore.size() + " (sequence " + propertyStore.getSequence() + ")");
+        writer.println("replay : " + replayBuffer.size() + " changes (" + replayBuffer.getDataSize() + " bytes)");
+        metrics.dump(writer, propertyListenerList.getSnapshot(), dispatchEngine.getPendingDrains(), requestPipeline.getQueueSize());
     }
 
     @Override
@@ -232,6 +958,16 @@ public class TemplateService extends Service {
     
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+
+        if (intent != null && intent.hasExtra(EXTRA_HEARTBEAT_PERIOD)) {
+
+            long periodMs = intent.getLongExtra(EXTRA_HEARTBEAT_PERIOD, 0);
+
+            if (periodMs > 0)
+                startHeartbeat(periodMs);
+            else
+                stopHeartbeat();
+        }
         return START_STICKY;
     }
 }
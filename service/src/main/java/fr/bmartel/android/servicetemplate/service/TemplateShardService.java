@@ -0,0 +1,413 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.IServiceTemplate;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyDelta;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyKeys;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyValue;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * Secondary instance of {@link TemplateService} running in its own process, so that clients are spread on several binder thread pools
+ * <p/>
+ * Primary instance (TemplateService) owns property store. A shard mirrors it through a listener registered on all properties and
+ * serves reads and notifications of its own clients from the mirror. Writes and streams are forwarded to primary instance, changes
+ * come back through the mirror with the version given by primary instance.
+ * <p/>
+ * Mirror is flow controlled so that primary never overflows shard binder buffer, and registered again if primary closes its channel.
+ * A shard read following a write is not read-your-writes : the change is visible once mirrored. Only a compare and set waits (for at
+ * most MIRROR_WAIT_MS) for its returned version to be mirrored, writes without a returned version dont wait.
+ * <p/>
+ * Each shard is a subclass declared in manifest with its own android:process
+ *
+ * @author Bertrand Martel
+ */
+public class TemplateShardService extends TemplateService {
+
+    private String TAG = TemplateShardService.class.getName();
+
+    public static class Shard1 extends TemplateShardService {
+    }
+
+    public static class Shard2 extends TemplateShardService {
+    }
+
+    public static class Shard3 extends TemplateShardService {
+    }
+
+    /**
+     * primary instance (null while not connected)
+     */
+    private volatile IServiceTemplate primary = null;
+
+    private ServiceConnection primaryConnection = null;
+
+    /**
+     * callbacks primary can send before mirror grants credits back
+     */
+    private final static int MIRROR_CREDITS = 256;
+
+    /**
+     * max time a compare and set forwarded to primary waits for its change to be mirrored
+     */
+    private final static long MIRROR_WAIT_MS = 500;
+
+    /**
+     * primary instance mirror listener is registered on (null while not connected)
+     */
+    private volatile IServiceTemplate mirrorSource = null;
+
+    /**
+     * id of mirror listener registration on primary
+     */
+    private volatile String mirrorListenerId = null;
+
+    /**
+     * callbacks processed since last credit grant
+     */
+    private final AtomicInteger consumedCredits = new AtomicInteger();
+
+    /**
+     * notified each time a change is mirrored
+     */
+    private final Object mirrorProgress = new Object();
+
+    /**
+     * PID of client which opened producer side of a stream through this shard
+     */
+    private final ConcurrentHashMap<String, Integer> streamProducers = new ConcurrentHashMap<>();
+
+    /**
+     * mirror all changes of primary store : one value per property is queued so that latest value of a property is never dropped
+     */
+    private IPropertyListener mirrorListener = new IPropertyListener.Stub() {
+
+        @Override
+        public void onKeyChange(String key, String value, long version) {
+            applyPropertyEntry(new PropertyEntry(key, value, version));
+            returnCredit();
+        }
+
+        @Override
+        public void onTypedChange(String key, PropertyValue value, long version) {
+            applyPropertyEntry(new PropertyEntry(key, value.toString(), version));
+            returnCredit();
+        }
+
+        @Override
+        public void onReplay(PropertyBatch changes, long completeFrom, boolean last) {
+            for (int i = 0; i < changes.size(); i++) {
+                applyPropertyEntry(new PropertyEntry(changes.getKey(i), changes.getValue(i), changes.getVersion(i)));
+            }
+            returnCredit();
+        }
+
+        @Override
+        public void onLargeValue(final String key, long version, int length) {
+
+            final IServiceTemplate source = mirrorSource;
+
+            if (source != null) {
+                //large value is read out of binder thread delivering mirror callbacks
+                runTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            PropertyBatch properties = source.getProperties(new String[]{key});
+                            applyPropertyEntry(new PropertyEntry(key, properties.getValue(0), properties.getVersion(0)));
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+            returnCredit();
+        }
+
+        @Override
+        public void onChannelClosed(String reason) {
+
+            Log.e(TAG, getShardName() + " mirror closed by primary : " + reason);
+
+            final IServiceTemplate source = mirrorSource;
+            if (source == null)
+                return;
+
+            runTask(new Runnable() {
+                @Override
+                public void run() {
+                    mirror(source);
+                }
+            });
+        }
+
+        @Override
+        public void onPropertyChange(String propertyValue) {
+        }
+
+        @Override
+        public void onSnapshotReady(long version, int length) {
+        }
+
+        @Override
+        public void onPropertyVersion(String propertyValue, long version) {
+        }
+
+        @Override
+        public void onPropertyDelta(PropertyDelta delta) {
+        }
+    };
+
+    /**
+     * @return shard name
+     */
+    protected String getShardName() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    protected String getSnapshotFileName() {
+        return super.getSnapshotFileName() + "_" + getShardName();
+    }
+
+    @Override
+    protected void openPropertyStore() {
+
+        //primary is restarted by system if it dies : mirror is registered again on each connection
+        primaryConnection = new ServiceConnection() {
+
+            @Override
+            public void onServiceConnected(ComponentName componentName, IBinder service) {
+
+                Log.i(TAG, getShardName() + " connected to primary");
+
+                final IServiceTemplate primary = IServiceTemplate.Stub.asInterface(service);
+
+                runTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        mirror(primary);
+                    }
+                });
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName componentName) {
+                Log.i(TAG, getShardName() + " disconnected from primary");
+                primary = null;
+                mirrorSource = null;
+                mirrorListenerId = null;
+            }
+        };
+
+        if (!bindService(new Intent(this, TemplateService.class), primaryConnection, Context.BIND_AUTO_CREATE))
+            Log.e(TAG, "Error cant bind to primary service !");
+    }
+
+    /**
+     * register mirror listener then read all properties : a value read after a newer change or removal has been received is ignored
+     *
+     * @param primary primary instance
+     */
+    private void mirror(IServiceTemplate primary) {
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeyPrefixes(new String[]{""});
+        options.setKeyedDelivery(true);
+        options.setDeliveryPolicy(SubscriptionOptions.DELIVERY_LATEST);
+        options.setInitialCredits(MIRROR_CREDITS);
+
+        try {
+            //previous registration is closed on primary side when mirror is registered again
+            String closedListenerId = mirrorListenerId;
+            if (closedListenerId != null)
+                primary.removeListener(closedListenerId);
+
+            mirrorSource = primary;
+            consumedCredits.set(0);
+            mirrorListenerId = primary.registerListenerWithOptions(mirrorListener, options);
+
+            PropertyBatch properties = primary.getAllProperties();
+
+            for (int i = 0; i < properties.size(); i++) {
+                applyPropertyEntry(new PropertyEntry(properties.getKey(i), properties.getValue(i), properties.getVersion(i)));
+            }
+
+            //changes received from now on are newer than bootstrap values
+            getPropertyStore().clearTombstones();
+
+            Log.i(TAG, getShardName() + " mirrored " + properties.size() + " properties");
+
+            this.primary = primary;
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * return the credit consumed by a mirrored callback. Credits are granted by half window so that primary is not stalled while a
+     * grant is in flight
+     */
+    private void returnCredit() {
+
+        int consumed = consumedCredits.incrementAndGet();
+
+        IServiceTemplate source = mirrorSource;
+        String listenerId = mirrorListenerId;
+
+        if (consumed < MIRROR_CREDITS / 2 || source == null || listenerId == null)
+            return;
+
+        consumedCredits.addAndGet(-consumed);
+
+        try {
+            source.grantCredits(listenerId, mirrorListener, consumed);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void applyPropertyEntry(PropertyEntry entry) {
+        super.applyPropertyEntry(entry);
+        synchronized (mirrorProgress) {
+            mirrorProgress.notifyAll();
+        }
+    }
+
+    /**
+     * wait for a change forwarded to primary to be mirrored so that a read following the write sees it
+     *
+     * @param key     written property key
+     * @param version version returned by primary
+     */
+    private void awaitMirror(String key, long version) {
+
+        long deadline = SystemClock.uptimeMillis() + MIRROR_WAIT_MS;
+
+        synchronized (mirrorProgress) {
+            long remaining;
+            while (getPropertyStore().getKnownVersion(key) < version && (remaining = deadline - SystemClock.uptimeMillis()) > 0) {
+                try {
+                    mirrorProgress.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        if (getPropertyStore().getKnownVersion(key) < version)
+            Log.i(TAG, getShardName() + " version " + version + " of " + key + " not mirrored after " + MIRROR_WAIT_MS + "ms");
+    }
+
+    private IServiceTemplate getPrimary() {
+        IServiceTemplate primary = this.primary;
+        if (primary == null)
+            throw new IllegalStateException("primary service not connected");
+        return primary;
+    }
+
+    @Override
+    protected void writeProperty(String key, String value) throws RemoteException {
+        if (PropertyKeys.DEFAULT_KEY.equals(key) && value != null)
+            getPrimary().setProperty(value);
+        else
+            getPrimary().setProperties(new PropertyBatch(new String[]{key}, new String[]{value}));
+    }
+
+    @Override
+    protected void writeProperties(PropertyBatch properties) throws RemoteException {
+        getPrimary().setProperties(properties);
+    }
+
+    @Override
+    protected long compareAndSetProperty(String key, long expectedVersion, String value) throws RemoteException {
+        long version = getPrimary().compareAndSet(key, expectedVersion, value);
+        if (version > 0)
+            awaitMirror(key, version);
+        return version;
+    }
+
+    @Override
+    protected boolean commitProperties(PropertyBatch properties) throws RemoteException {
+        return getPrimary().commit(properties);
+    }
+
+    @Override
+    protected ParcelFileDescriptor openStreamDescriptor(String streamName, boolean producer, int callingPid) throws RemoteException {
+
+        if (!producer)
+            return getPrimary().openStreamReader(streamName);
+
+        ParcelFileDescriptor descriptor = getPrimary().openStreamWriter(streamName);
+
+        if (descriptor != null)
+            streamProducers.put(streamName, callingPid);
+
+        return descriptor;
+    }
+
+    @Override
+    protected void closeStreamByName(String streamName, int callingPid) throws RemoteException {
+
+        //primary only knows this shard : producer of a stream opened through this shard is checked here
+        Integer producerPid = streamProducers.get(streamName);
+
+        if (producerPid != null && producerPid != callingPid)
+            throw new SecurityException("stream " + streamName + " can only be closed by its producer");
+
+        streamProducers.remove(streamName);
+        getPrimary().closeStream(streamName);
+    }
+
+    @Override
+    public void onDestroy() {
+
+        if (primaryConnection != null) {
+            unbindService(primaryConnection);
+            primaryConnection = null;
+        }
+        primary = null;
+        mirrorSource = null;
+
+        super.onDestroy();
+    }
+}
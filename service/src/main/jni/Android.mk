@@ -1,2 +0,0 @@
-SUPPORT_MP3_SMPEG := false
-include $(call all-subdir-makefiles)
@@ -0,0 +1,266 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyDelta;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyValue;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Listener channel delivery tests
+ *
+ * @author Bertrand Martel
+ */
+public class ListenerChannelTest {
+
+    private final static int PID = 1234;
+
+    /**
+     * listener counting keyed notifications
+     */
+    private static class CountingListener extends IPropertyListener.Stub {
+
+        private final Semaphore received = new Semaphore(0);
+
+        private final Semaphore largeValues = new Semaphore(0);
+
+        @Override
+        public void onPropertyChange(String propertyValue) {
+        }
+
+        @Override
+        public void onSnapshotReady(long version, int length) {
+        }
+
+        @Override
+        public void onPropertyVersion(String propertyValue, long version) {
+        }
+
+        @Override
+        public void onPropertyDelta(PropertyDelta delta) {
+        }
+
+        @Override
+        public void onKeyChange(String key, String value, long version) {
+            received.release();
+        }
+
+        @Override
+        public void onTypedChange(String key, PropertyValue value, long version) {
+        }
+
+        @Override
+        public void onReplay(PropertyBatch changes, long completeFrom, boolean last) {
+        }
+
+        @Override
+        public void onLargeValue(String key, long version, int length) {
+            largeValues.release();
+        }
+
+        @Override
+        public void onChannelClosed(String reason) {
+        }
+
+        private boolean await(int count) throws InterruptedException {
+            return received.tryAcquire(count, 5, TimeUnit.SECONDS);
+        }
+
+        private int pending() {
+            return received.availablePermits();
+        }
+    }
+
+    private DispatchEngine dispatchEngine;
+
+    private ListenerRegistry<ListenerChannel> registry;
+
+    private long version = 0;
+
+    @Before
+    public void setUp() {
+        dispatchEngine = new DispatchEngine(new ServiceMetrics());
+        registry = new ListenerRegistry<>();
+    }
+
+    @After
+    public void tearDown() {
+        dispatchEngine.shutdown();
+    }
+
+    private ListenerChannel register(CountingListener listener, SubscriptionOptions options) {
+        ListenerChannel channel = dispatchEngine.createChannel(PID, listener, options);
+        channel.setListenerId(registry.add(PID, channel));
+        return channel;
+    }
+
+    private void offer(ListenerChannel channel, int count) {
+        for (int i = 0; i < count; i++) {
+            version++;
+            assertTrue(channel.offer(PropertyEvent.value(new PropertyEntry("key" + version, "value" + version, version))));
+        }
+    }
+
+    @Test
+    public void flowControlledListenerResumesWhenCreditsAreGranted() throws InterruptedException {
+
+        int window = 4;
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeyPrefixes(new String[]{""});
+        options.setInitialCredits(window);
+
+        CountingListener listener = new CountingListener();
+        ListenerChannel channel = register(listener, options);
+
+        offer(channel, window * 3);
+
+        assertTrue(listener.await(window));
+        Thread.sleep(100);
+        assertEquals("no callback past first window", 0, listener.pending());
+        assertEquals(window * 2, channel.getQueueSize());
+
+        //credits are granted the way service receives them : oneway call without caller PID
+        for (int i = 0; i < 2; i++) {
+
+            ListenerChannel found = ListenerChannel.find(registry.getSnapshot(), channel.getListenerId(), listener.asBinder());
+            assertSame(channel, found);
+
+            found.grantCredits(window);
+            assertTrue(listener.await(window));
+        }
+
+        offer(channel, 1);
+        channel.grantCredits(1);
+        assertTrue(listener.await(1));
+        assertEquals(0, channel.getQueueSize());
+    }
+
+    @Test
+    public void listenerIsNotFoundWithAnotherBinder() {
+
+        CountingListener listener = new CountingListener();
+        ListenerChannel channel = register(listener, new SubscriptionOptions());
+
+        assertNull(ListenerChannel.find(registry.getSnapshot(), channel.getListenerId(), new CountingListener().asBinder()));
+        assertNull(ListenerChannel.find(registry.getSnapshot(), ListenerList.INVALID_ID, listener.asBinder()));
+        assertFalse(channel.isClosed());
+    }
+
+    @Test
+    public void largeValueIsNotSentInCallback() throws InterruptedException {
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeyPrefixes(new String[]{""});
+
+        CountingListener listener = new CountingListener();
+        ListenerChannel channel = register(listener, options);
+
+        assertTrue(channel.offer(PropertyEvent.large(new PropertyEntry("key", "large value", 1), 128 * 1024)));
+
+        assertTrue(listener.largeValues.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(0, listener.pending());
+    }
+
+    @Test
+    public void latestValueIsNotDroppedByDebounceDelay() throws InterruptedException {
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeyPrefixes(new String[]{""});
+        options.setDeliveryPolicy(SubscriptionOptions.DELIVERY_LATEST);
+        options.setDebounceMs(100);
+        options.setDeadlineMs(20);
+
+        CountingListener listener = new CountingListener();
+        ListenerChannel channel = register(listener, options);
+
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(channel.offer(PropertyEvent.value(new PropertyEntry("key", "value" + i, i))));
+        }
+
+        //debounce delay is longer than deadline : latest value is still delivered
+        assertTrue(listener.await(1));
+        assertEquals(0, channel.getQueueSize());
+    }
+
+    @Test
+    public void invalidOptionsAreRejected() {
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setMaxUnacknowledged(Integer.MAX_VALUE);
+        options.validate();
+        assertEquals(SubscriptionOptions.MAX_UNACKNOWLEDGED, options.getMaxUnacknowledged());
+
+        options = new SubscriptionOptions();
+        options.setDebounceMs(-1);
+        try {
+            options.validate();
+            fail("negative debounce accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        options = new SubscriptionOptions();
+        options.setMaxRateHz(Float.NaN);
+        try {
+            options.validate();
+            fail("invalid rate accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void offerAfterShutdownDoesntThrow() {
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeyPrefixes(new String[]{""});
+        options.setDebounceMs(100);
+
+        ListenerChannel channel = register(new CountingListener(), options);
+
+        dispatchEngine.shutdown();
+
+        //late binder call after service is destroyed : delayed drain is rejected by stopped scheduler
+        offer(channel, 1);
+        offer(channel, 1);
+        assertEquals(2, channel.getQueueSize());
+    }
+}
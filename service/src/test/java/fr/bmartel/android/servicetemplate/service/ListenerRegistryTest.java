@@ -0,0 +1,250 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Listener registry stress test and benchmark
+ *
+ * @author Bertrand Martel
+ */
+public class ListenerRegistryTest {
+
+    private final static int THREAD_COUNT = 8;
+
+    private final static int ITERATIONS = 20000;
+
+    /**
+     * PIDs whose listeners are added and removed
+     */
+    private final static int PID_COUNT = 4;
+
+    /**
+     * PIDs whose listeners stay registered
+     */
+    private final static int KEPT_PID_COUNT = 100;
+
+    private final static int BENCHMARK_PIDS = 100;
+
+    private final static int BENCHMARK_LISTENERS = 20000;
+
+    /**
+     * object kept registered until the end of the stress test
+     */
+    private static class Registration {
+
+        private final int pid;
+
+        private final long id;
+
+        private final Object obj;
+
+        private Registration(int pid, long id, Object obj) {
+            this.pid = pid;
+            this.id = id;
+            this.obj = obj;
+        }
+    }
+
+    @Test
+    public void concurrentAddAndRemoveLoseNoRegistration() throws InterruptedException {
+
+        final ListenerRegistry<Object> registry = new ListenerRegistry<>();
+        final AtomicInteger lost = new AtomicInteger();
+
+        final List<List<Registration>> kept = new ArrayList<>();
+        Thread[] threads = new Thread[THREAD_COUNT];
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+
+            final List<Registration> registrations = new ArrayList<>();
+            kept.add(registrations);
+
+            final int seed = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    Random random = new Random(seed);
+                    Registration previous = null;
+
+                    for (int j = 0; j < ITERATIONS; j++) {
+
+                        int pid = random.nextInt(PID_COUNT);
+
+                        //listener removed right away : its removal empties the list of its PID when nothing else is registered
+                        Object obj = new Object();
+                        Registration registration = new Registration(pid, registry.add(pid, obj), obj);
+
+                        //previous listener must still be registered, a concurrent pruning of an empty list must not drop it
+                        if (previous != null) {
+                            if (registry.remove(previous.pid, previous.id) != previous.obj)
+                                lost.incrementAndGet();
+                        }
+                        previous = registration;
+
+                        //some listeners stay registered until the end (on other PIDs so that churned lists still get empty)
+                        if (j % 10 == 0) {
+                            int keptPid = PID_COUNT + random.nextInt(KEPT_PID_COUNT);
+                            obj = new Object();
+                            registrations.add(new Registration(keptPid, registry.add(keptPid, obj), obj));
+                        }
+                    }
+                    if (registry.remove(previous.pid, previous.id) != previous.obj)
+                        lost.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("lost registrations", 0, lost.get());
+
+        int count = 0;
+        for (List<Registration> registrations : kept) {
+            for (Registration registration : registrations) {
+                assertSame(registration.obj, registry.get(registration.pid, registration.id));
+                assertSame(registration.obj, registry.remove(registration.pid, registration.id));
+                count++;
+            }
+        }
+        assertEquals(THREAD_COUNT * ITERATIONS / 10, count);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void addToListBeingPrunedIsNotLost() {
+
+        ListenerRegistry<Object> registry = new ListenerRegistry<>();
+
+        int pid = 1;
+        registry.remove(pid, registry.add(pid, new Object()));
+        registry.add(pid, new Object());
+
+        //removal of an empty list has retired it but not yet removed it from registry
+        ListenerList<Object> listenerList = registry.getSnapshot().get(pid);
+        listenerList.clear();
+        assertTrue(listenerList.retireIfEmpty());
+        assertEquals(ListenerList.INVALID_ID, listenerList.add(new Object()));
+
+        Object obj = new Object();
+        long id = registry.add(pid, obj);
+
+        assertSame(obj, registry.get(pid, id));
+        assertNotSame(listenerList, registry.getSnapshot().get(pid));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void idIsNotReusedWhenListOfPidIsCreatedAgain() {
+
+        ListenerRegistry<Object> registry = new ListenerRegistry<>();
+
+        int pid = 1;
+        long oldId = registry.add(pid, new Object());
+        registry.remove(pid, oldId);
+        assertEquals(0, registry.getSnapshot().size());
+
+        Object obj = new Object();
+        long id = registry.add(pid, obj);
+
+        assertTrue(id != oldId);
+
+        //stale removal of first listener doesnt remove the new one
+        assertNull(registry.remove(pid, oldId));
+        assertSame(obj, registry.get(pid, id));
+    }
+
+    @Test
+    public void nonEmptyListIsNotRetired() {
+        ListenerList<Object> listenerList = new ListenerList<>();
+        listenerList.add(new Object());
+        assertFalse(listenerList.retireIfEmpty());
+    }
+
+    @Test
+    public void registryOperationsAtTwentyThousandListeners() {
+
+        ListenerRegistry<Object> registry = new ListenerRegistry<>();
+
+        int[] pids = new int[BENCHMARK_LISTENERS];
+        long[] ids = new long[BENCHMARK_LISTENERS];
+
+        //warm up
+        for (int i = 0; i < BENCHMARK_LISTENERS; i++) {
+            registry.remove(i % BENCHMARK_PIDS, registry.add(i % BENCHMARK_PIDS, this));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_LISTENERS; i++) {
+            pids[i] = i % BENCHMARK_PIDS;
+            ids[i] = registry.add(pids[i], this);
+        }
+        long add = (System.nanoTime() - start) / BENCHMARK_LISTENERS;
+
+        assertEquals(BENCHMARK_LISTENERS, registry.size());
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_LISTENERS; i++) {
+            assertSame(this, registry.get(pids[i], ids[i]));
+        }
+        long get = (System.nanoTime() - start) / BENCHMARK_LISTENERS;
+
+        start = System.nanoTime();
+        int iterated = 0;
+        for (ListenerList<Object> listenerList : registry.getSnapshot().values()) {
+            iterated += listenerList.getValues().size();
+        }
+        long snapshot = (System.nanoTime() - start) / 1000;
+
+        assertEquals(BENCHMARK_LISTENERS, iterated);
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_LISTENERS; i++) {
+            assertSame(this, registry.remove(pids[i], ids[i]));
+        }
+        long remove = (System.nanoTime() - start) / BENCHMARK_LISTENERS;
+
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getSnapshot().size());
+
+        System.out.println(BENCHMARK_LISTENERS + " listeners on " + BENCHMARK_PIDS + " PIDs : add " + add + "ns, get " + get
+                + "ns, remove " + remove + "ns, snapshot iteration " + snapshot + "us");
+    }
+}
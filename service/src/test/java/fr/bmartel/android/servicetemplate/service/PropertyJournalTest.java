@@ -0,0 +1,257 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Property journal persistence tests
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyJournalTest {
+
+    private final static int WRITER_COUNT = 4;
+
+    private final static int WRITES_PER_WRITER = 20000;
+
+    private final static int KEY_COUNT = 500;
+
+    private final static int BENCHMARK_KEY_COUNT = 100000;
+
+    private File directory = null;
+
+    private ExecutorService compactionExecutor = null;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        compactionExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        compactionExecutor.shutdownNow();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void writesConcurrentWithCompactionSurviveRestart() throws Exception {
+
+        final PropertyStore store = new PropertyStore();
+
+        //small journal so that writers run concurrently with many compactions
+        PropertyJournal journal = new PropertyJournal(directory, 64 * 1024);
+        journal.restore(store);
+        journal.setCompactionExecutor(compactionExecutor);
+        store.setJournal(journal);
+
+        Thread[] writers = new Thread[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            final int writer = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < WRITES_PER_WRITER; j++) {
+                        String key = "key" + ((writer * WRITES_PER_WRITER + j) % KEY_COUNT);
+                        store.put(key, (j % 7 == 0) ? null : "value" + j);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        compactionExecutor.shutdown();
+        assertTrue(compactionExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        journal.flush();
+
+        PropertyStore restored = new PropertyStore();
+        new PropertyJournal(directory, 64 * 1024).restore(restored);
+
+        assertEquals(store.size(), restored.size());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            PropertyEntry expected = store.getEntry("key" + i);
+            PropertyEntry entry = restored.getEntry("key" + i);
+            if (expected == null) {
+                assertNull("key" + i, entry);
+            } else {
+                assertNotNull("key" + i, entry);
+                assertEquals(expected.getValue(), entry.getValue());
+                assertEquals(expected.getVersion(), entry.getVersion());
+            }
+        }
+    }
+
+    @Test
+    public void compactionOfHundredThousandKeys() throws Exception {
+
+        PropertyStore store = new PropertyStore();
+
+        PropertyJournal journal = new PropertyJournal(directory, 16 * 1024 * 1024);
+        journal.restore(store);
+
+        for (int i = 0; i < BENCHMARK_KEY_COUNT; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.setJournal(journal);
+
+        //first compaction warms up encoding path
+        journal.compact();
+        journal.compact();
+
+        System.out.println("compaction of " + BENCHMARK_KEY_COUNT + " keys : " + journal.getLastCompactionDuration() + "us");
+
+        assertTrue(journal.getLastCompactionDuration() > 0);
+        assertEquals(0, journal.getPosition());
+
+        PropertyStore restored = new PropertyStore();
+        new PropertyJournal(directory, 16 * 1024 * 1024).restore(restored);
+        assertEquals(BENCHMARK_KEY_COUNT, restored.size());
+    }
+
+    @Test
+    public void restoreOfHundredThousandKeys() throws Exception {
+
+        PropertyStore store = new PropertyStore();
+
+        PropertyJournal journal = new PropertyJournal(directory, 16 * 1024 * 1024);
+        journal.restore(store);
+
+        for (int i = 0; i < BENCHMARK_KEY_COUNT; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.setJournal(journal);
+        journal.compact();
+
+        //half of keys also in journal tail
+        for (int i = 0; i < BENCHMARK_KEY_COUNT; i += 2) {
+            store.put("key" + i, "updated" + i);
+        }
+        journal.flush();
+
+        //first restore warms up decoding path
+        new PropertyJournal(directory, 16 * 1024 * 1024).restore(new PropertyStore());
+
+        PropertyStore restored = new PropertyStore();
+        PropertyJournal restoredJournal = new PropertyJournal(directory, 16 * 1024 * 1024);
+
+        long start = System.nanoTime();
+        restoredJournal.restore(restored);
+        long duration = (System.nanoTime() - start) / 1000;
+
+        System.out.println("restore of " + BENCHMARK_KEY_COUNT + " keys : " + duration + "us");
+
+        assertEquals(BENCHMARK_KEY_COUNT, restored.size());
+        assertEquals("updated0", restored.get("key0", null));
+        assertEquals("value1", restored.get("key1", null));
+        assertEquals(store.getSequence(), restored.getSequence());
+    }
+
+    @Test
+    public void truncatedSnapshotFallsBackToJournal() throws Exception {
+
+        PropertyStore store = new PropertyStore();
+
+        PropertyJournal journal = new PropertyJournal(directory, 64 * 1024);
+        journal.restore(store);
+        store.setJournal(journal);
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        journal.compact();
+        store.put("tail", "value");
+        journal.flush();
+
+        RandomAccessFile snapshot = new RandomAccessFile(new File(directory, "properties.snapshot"), "rw");
+        try {
+            snapshot.setLength(snapshot.length() - 3);
+        } finally {
+            snapshot.close();
+        }
+
+        PropertyStore restored = new PropertyStore();
+        new PropertyJournal(directory, 64 * 1024).restore(restored);
+
+        //no partial snapshot content
+        assertEquals(1, restored.size());
+        assertEquals("value", restored.get("tail", null));
+    }
+
+    @Test
+    public void commitIsJournaledInOneRecord() throws Exception {
+
+        PropertyStore store = new PropertyStore();
+
+        PropertyJournal journal = new PropertyJournal(directory, 64 * 1024);
+        journal.restore(store);
+        store.setJournal(journal);
+
+        store.put("removed", "value");
+        int start = journal.getPosition();
+
+        String[] keys = new String[]{"a", "b", "removed"};
+        assertNotNull(store.commit(new PropertyBatch(keys, new String[]{"1", "2", null}, new long[]{0, 0, 1})));
+
+        //batch header once, record header once
+        int entriesLength = 3 * (8 + 4 + 4) + "a".length() + 1 + "b".length() + 1 + "removed".length();
+        assertEquals(8 + 8 + 4 + entriesLength, journal.getPosition() - start);
+
+        journal.flush();
+
+        PropertyStore restored = new PropertyStore();
+        new PropertyJournal(directory, 64 * 1024).restore(restored);
+
+        assertEquals("1", restored.get("a", null));
+        assertEquals("2", restored.get("b", null));
+        assertNull(restored.getEntry("removed"));
+        assertEquals(store.getSequence(), restored.getSequence());
+    }
+}
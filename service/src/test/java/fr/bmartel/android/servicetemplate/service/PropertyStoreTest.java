@@ -0,0 +1,104 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Property store tests
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyStoreTest {
+
+    @Test
+    public void removalMirroredBeforeBootstrapReadIsNotResurrected() {
+
+        PropertyStore store = new PropertyStore();
+
+        //removal received through mirror before a bootstrap read taken earlier
+        assertFalse(store.restore(new PropertyEntry("key", null, 10)));
+        assertFalse(store.restore(new PropertyEntry("key", "stale", 5)));
+
+        assertNull(store.getEntry("key"));
+        assertEquals(10, store.getKnownVersion("key"));
+
+        //newer value is applied
+        assertTrue(store.restore(new PropertyEntry("key", "value", 11)));
+        assertEquals("value", store.get("key", null));
+    }
+
+    @Test
+    public void tombstonesAreForgottenAfterBootstrap() {
+
+        PropertyStore store = new PropertyStore();
+
+        store.restore(new PropertyEntry("key", null, 10));
+        store.clearTombstones();
+
+        assertEquals(0, store.getKnownVersion("key"));
+    }
+
+    @Test
+    public void wholeStoreReadSeesCommitEntirely() throws InterruptedException {
+
+        final PropertyStore store = new PropertyStore();
+        final String[] keys = new String[]{"a", "b"};
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        store.putAll(new PropertyBatch(keys, new String[]{"0", "0"}));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; running.get(); i++) {
+                    PropertyBatch current = store.getAll(keys);
+                    String value = String.valueOf(i);
+                    store.commit(new PropertyBatch(keys, new String[]{value, value}, new long[]{current.getVersion(0), current.getVersion(1)}));
+                }
+            }
+        });
+        writer.start();
+
+        try {
+            for (int i = 0; i < 20000; i++) {
+                PropertyEntry[] entries = store.getEntries();
+                assertEquals(2, entries.length);
+                assertEquals(entries[0].getValue(), entries[1].getValue());
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import org.junit.Test;
+
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replay buffer tests
+ *
+ * @author Bertrand Martel
+ */
+public class ReplayBufferTest {
+
+    private final static int MAX_BATCH_BYTES = 4096;
+
+    private final static int WRITER_COUNT = 4;
+
+    private final static int WRITES_PER_WRITER = 1000;
+
+    private static SubscriptionOptions allKeys() {
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeyPrefixes(new String[]{""});
+        return options;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void batchesAreBoundedByParcelSize() {
+
+        ReplayBuffer buffer = new ReplayBuffer(4096, 512 * 1024, MAX_BATCH_BYTES);
+
+        String value = repeat('v', 500);
+        for (int i = 1; i <= 100; i++) {
+            buffer.append(new PropertyEntry("key" + i, value, i));
+        }
+
+        ReplayBuffer.Replay replay = buffer.read(0, 0, allKeys(), 64);
+
+        int count = 0;
+        for (PropertyBatch batch : replay.getBatches()) {
+            int size = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                size += 2 * (batch.getKey(i).length() + batch.getValue(i).length()) + 24;
+            }
+            assertTrue("batch of " + size + " bytes", size <= MAX_BATCH_BYTES);
+            count += batch.size();
+        }
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void changeLargerThanBatchIsReportedAsGap() {
+
+        ReplayBuffer buffer = new ReplayBuffer(4096, 512 * 1024, MAX_BATCH_BYTES);
+
+        buffer.append(new PropertyEntry("small", "value", 1));
+        buffer.append(new PropertyEntry("large", repeat('v', MAX_BATCH_BYTES), 2));
+
+        ReplayBuffer.Replay replay = buffer.read(0, 0, allKeys(), 64);
+
+        assertEquals(1, buffer.size());
+        assertEquals(3, replay.getCompleteFrom());
+    }
+
+    @Test
+    public void concurrentWritesAreRecordedInVersionOrder() throws InterruptedException {
+
+        final PropertyStore store = new PropertyStore();
+        ReplayBuffer buffer = new ReplayBuffer(WRITER_COUNT * WRITES_PER_WRITER, 1024 * 1024, 64 * 1024);
+        store.setHistory(buffer);
+
+        Thread[] writers = new Thread[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            final int writer = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < WRITES_PER_WRITER; j++) {
+                        store.put("writer" + writer + "." + (j % 16), "value" + j);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        long previous = 0;
+        int count = 0;
+        for (PropertyBatch batch : buffer.read(0, 0, allKeys(), 64).getBatches()) {
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(previous + 1, batch.getVersion(i));
+                previous = batch.getVersion(i);
+                count++;
+            }
+        }
+        assertEquals(WRITER_COUNT * WRITES_PER_WRITER, count);
+    }
+}
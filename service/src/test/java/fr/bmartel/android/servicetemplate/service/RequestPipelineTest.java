@@ -0,0 +1,233 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.service;
+
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fr.bmartel.android.servicetemplate.servicelib.IRequestCallback;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request pipeline ordering tests and binder thread occupancy benchmark
+ *
+ * @author Bertrand Martel
+ */
+public class RequestPipelineTest {
+
+    private final static int REQUEST_COUNT = 2000;
+
+    private final static int BENCHMARK_REQUESTS = 2000;
+
+    private final static int BENCHMARK_BATCH_SIZE = 32;
+
+    /**
+     * callback counting completed requests
+     */
+    private static class CountingCallback extends IRequestCallback.Stub {
+
+        private final CountDownLatch completed;
+
+        private CountingCallback(int count) {
+            completed = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onProperties(long requestId, PropertyBatch properties) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onCompleted(long requestId, long result) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onError(long requestId, String message) {
+        }
+
+        private boolean await() throws InterruptedException {
+            return completed.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * request recording its id in processing order
+     */
+    private static class RecordingRequest extends RequestPipeline.Request {
+
+        private final List<Long> processed;
+
+        private RecordingRequest(long requestId, IRequestCallback callback, List<Long> processed) {
+            super(requestId, callback);
+            this.processed = processed;
+        }
+
+        @Override
+        protected void process() throws RemoteException {
+            synchronized (processed) {
+                processed.add(requestId);
+            }
+            if (requestId % 3 == 0)
+                Thread.yield();
+            callback.onCompleted(requestId, 0);
+        }
+    }
+
+    private RequestPipeline pipeline = null;
+
+    private File directory = null;
+
+    @Before
+    public void setUp() throws IOException {
+        pipeline = new RequestPipeline(2, REQUEST_COUNT * 2, new ServiceMetrics());
+        directory = File.createTempFile("pipeline", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void requestsOfOneCallerRunInOrder() throws InterruptedException {
+
+        CountingCallback first = new CountingCallback(REQUEST_COUNT);
+        CountingCallback second = new CountingCallback(REQUEST_COUNT);
+
+        List<Long> firstProcessed = new ArrayList<>();
+        List<Long> secondProcessed = new ArrayList<>();
+
+        for (long i = 0; i < REQUEST_COUNT; i++) {
+            assertTrue(pipeline.submit(new RecordingRequest(i, first, firstProcessed)));
+            assertTrue(pipeline.submit(new RecordingRequest(i, second, secondProcessed)));
+        }
+
+        assertTrue(first.await());
+        assertTrue(second.await());
+
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            assertEquals(i, (long) firstProcessed.get(i));
+            assertEquals(i, (long) secondProcessed.get(i));
+        }
+        assertEquals(0, pipeline.getQueueSize());
+    }
+
+    @Test
+    public void blockedCallerDoesntDelayOtherCallers() throws InterruptedException {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        CountingCallback blocked = new CountingCallback(2);
+        CountingCallback other = new CountingCallback(1);
+
+        pipeline.submit(new RequestPipeline.Request(1, blocked) {
+            @Override
+            protected void process() throws RemoteException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                callback.onCompleted(requestId, 0);
+            }
+        });
+        pipeline.submit(new RecordingRequest(2, blocked, new ArrayList<Long>()));
+        pipeline.submit(new RecordingRequest(3, other, new ArrayList<Long>()));
+
+        assertTrue(other.await());
+        assertEquals("second request of blocked caller waits", 1, pipeline.getQueueSize());
+
+        release.countDown();
+        assertTrue(blocked.await());
+    }
+
+    @Test
+    public void binderThreadOccupancy() throws Exception {
+
+        final PropertyStore store = new PropertyStore();
+
+        PropertyJournal journal = new PropertyJournal(directory, 16 * 1024 * 1024);
+        journal.restore(store);
+        store.setJournal(journal);
+
+        String[] keys = new String[BENCHMARK_BATCH_SIZE];
+        String[] values = new String[BENCHMARK_BATCH_SIZE];
+        for (int i = 0; i < BENCHMARK_BATCH_SIZE; i++) {
+            keys[i] = "key" + i;
+            values[i] = "value" + i;
+        }
+        final PropertyBatch batch = new PropertyBatch(keys, values);
+
+        //before : binder thread writes the batch itself (synchronous setProperties)
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+            store.putAll(batch);
+        }
+        long synchronous = (System.nanoTime() - start) / BENCHMARK_REQUESTS;
+
+        //after : binder thread only queues the request (setPropertiesAsync)
+        CountingCallback callback = new CountingCallback(BENCHMARK_REQUESTS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+            pipeline.submit(new RequestPipeline.Request(i, callback) {
+                @Override
+                protected void process() throws RemoteException {
+                    store.putAll(batch);
+                    callback.onCompleted(requestId, batch.size());
+                }
+            });
+        }
+        long pipelined = (System.nanoTime() - start) / BENCHMARK_REQUESTS;
+
+        assertTrue(callback.await());
+
+        System.out.println("binder thread occupancy per " + BENCHMARK_BATCH_SIZE + " keys request : synchronous " + synchronous
+                + "ns, pipelined " + pipelined + "ns");
+
+        assertTrue(pipelined < synchronous);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.client;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fr.bmartel.android.servicetemplate.servicelib.IServiceTemplate;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run benchmark suite against TemplateService as an instrumentation test and write results as JSON (service application must be
+ * installed)
+ * <p/>
+ * ./gradlew :serviceclient:connectedDebugAndroidTest
+ * <p/>
+ * Results are logged with tag "benchmark" and written to files/benchmark.json in client data directory. Number of iterations
+ * of latency cases can be set with instrumentation argument "iterations"
+ *
+ * @author Bertrand Martel
+ */
+@RunWith(AndroidJUnit4.class)
+public class BenchmarkTest {
+
+    private static String TAG = BenchmarkTest.class.getName();
+
+    private final static String RESULT_TAG = "benchmark";
+
+    private final static String RESULT_FILE = "benchmark.json";
+
+    /**
+     * optional instrumentation argument : number of iterations of latency cases
+     */
+    private final static String ARG_ITERATIONS = "iterations";
+
+    private final static int BIND_TIMEOUT_S = 10;
+
+    private Context context = null;
+
+    private ServiceConnection serviceConnection = null;
+
+    private LinkedBlockingQueue<IServiceTemplate> connected = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+
+        context = InstrumentationRegistry.getTargetContext();
+
+        //benchmark uses its own binding so that singleton listener does not interfere with measurements
+        serviceConnection = new ServiceConnection() {
+
+            @Override
+            public void onServiceConnected(ComponentName componentName, IBinder service) {
+                connected.offer(IServiceTemplate.Stub.asInterface(service));
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName componentName) {
+                Log.e(TAG, "service disconnected during benchmark");
+            }
+        };
+
+        assertTrue("cant bind to service", context.bindService(ServiceSingleton.getInstance().buildExplicitIntent(
+                ServiceSingleton.SERVICE_PACKAGE, ServiceSingleton.SERVICE_CLASS), serviceConnection, Context.BIND_AUTO_CREATE));
+    }
+
+    @After
+    public void tearDown() {
+        if (serviceConnection != null) {
+            context.unbindService(serviceConnection);
+            serviceConnection = null;
+        }
+    }
+
+    @Test
+    public void runBenchmark() throws Exception {
+
+        IServiceTemplate serviceTemplate = connected.poll(BIND_TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull("service not connected", serviceTemplate);
+
+        BenchmarkRunner runner = new BenchmarkRunner(serviceTemplate);
+
+        String iterations = InstrumentationRegistry.getArguments().getString(ARG_ITERATIONS);
+        if (iterations != null)
+            runner.setIterations(Integer.parseInt(iterations));
+
+        JSONObject result = runner.runAll();
+        String output = result.toString(2);
+
+        Log.i(RESULT_TAG, output);
+
+        FileOutputStream file = new FileOutputStream(new File(context.getFilesDir(), RESULT_FILE));
+        try {
+            file.write(output.getBytes("UTF-8"));
+        } finally {
+            file.close();
+        }
+
+        Log.i(TAG, "benchmark results written to " + RESULT_FILE);
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.client;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import fr.bmartel.android.servicetemplate.servicelib.IServiceTemplate;
+
+/**
+ * Run benchmark suite against TemplateService and write results as JSON (debug builds only, activity is not exported)
+ * <p/>
+ * adb shell run-as fr.bmartel.android.servicetemplate.client am start -n fr.bmartel.android.servicetemplate.client/.BenchmarkActivity
+ * <p/>
+ * Results are logged with tag "benchmark" and written to files/benchmark.json in application data directory. Properties written by
+ * benchmark are removed and default property is restored at the end
+ *
+ * @author Bertrand Martel
+ */
+public class BenchmarkActivity extends Activity {
+
+    private static String TAG = BenchmarkActivity.class.getName();
+
+    private final static String RESULT_TAG = "benchmark";
+
+    private final static String RESULT_FILE = "benchmark.json";
+
+    /**
+     * optional intent extra : number of iterations of latency cases
+     */
+    public final static String EXTRA_ITERATIONS = "iterations";
+
+    private ServiceConnection serviceConnection = null;
+
+    private Thread benchmarkThread = null;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        final int iterations = getIntent().getIntExtra(EXTRA_ITERATIONS, 2000);
+
+        //benchmark uses its own binding so that singleton listener does not interfere with measurements
+        serviceConnection = new ServiceConnection() {
+
+            @Override
+            public void onServiceConnected(ComponentName componentName, IBinder service) {
+
+                final IServiceTemplate serviceTemplate = IServiceTemplate.Stub.asInterface(service);
+
+                benchmarkThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runBenchmark(serviceTemplate, iterations);
+                    }
+                }, "benchmark");
+                benchmarkThread.start();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName componentName) {
+                Log.e(TAG, "service disconnected during benchmark");
+                if (benchmarkThread != null)
+                    benchmarkThread.interrupt();
+            }
+        };
+
+        if (!bindService(ServiceSingleton.getInstance().buildExplicitIntent(ServiceSingleton.SERVICE_PACKAGE, ServiceSingleton.SERVICE_CLASS),
+                serviceConnection, Context.BIND_AUTO_CREATE)) {
+            Log.e(TAG, "Error cant bind to service !");
+            finish();
+        }
+    }
+
+    private void runBenchmark(IServiceTemplate serviceTemplate, int iterations) {
+
+        try {
+            BenchmarkRunner runner = new BenchmarkRunner(serviceTemplate);
+            runner.setIterations(iterations);
+
+            String result = runner.runAll().toString(2);
+
+            Log.i(RESULT_TAG, result);
+
+            FileOutputStream output = new FileOutputStream(new File(getFilesDir(), RESULT_FILE));
+            try {
+                output.write(result.getBytes("UTF-8"));
+            } finally {
+                output.close();
+            }
+
+            Log.i(TAG, "benchmark results written to " + RESULT_FILE);
+
+        } catch (InterruptedException e) {
+            Log.e(TAG, "benchmark interrupted");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (serviceConnection != null) {
+            unbindService(serviceConnection);
+            serviceConnection = null;
+        }
+    }
+}
@@ -0,0 +1,636 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.client;
+
+import android.os.Build;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.IRequestCallback;
+import fr.bmartel.android.servicetemplate.servicelib.IServiceTemplate;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyDelta;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyKeys;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyValue;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
+
+/**
+ * End-to-end benchmarks of service IPC paths, run against a bound TemplateService
+ * <p/>
+ * Each case produces a JSON object (latencies in nanoseconds) so that results of two releases can be compared
+ *
+ * @author Bertrand Martel
+ */
+public class BenchmarkRunner {
+
+    private static String TAG = BenchmarkRunner.class.getName();
+
+    /**
+     * result format version (to be incremented when a case or a field changes)
+     */
+    public final static int FORMAT_VERSION = 4;
+
+    /**
+     * property used by fan-out case (listeners are registered with a key filter on it)
+     */
+    public final static String FANOUT_KEY = "benchmark.fanout";
+
+    /**
+     * prefix of properties written by batch versus single call case
+     */
+    public final static String BATCH_KEY_PREFIX = "benchmark.batch.";
+
+    /**
+     * property written by synchronous versus asynchronous case
+     */
+    public final static String ASYNC_KEY = "benchmark.async";
+
+    /**
+     * listener counts of fan-out case
+     */
+    public final static int[] FANOUT_LISTENERS = new int[]{1, 10, 100, 1000};
+
+    /**
+     * number of properties of batch versus single call case
+     */
+    public final static int[] BATCH_SIZES = new int[]{1, 8, 32, 128};
+
+    /**
+     * number of properties written by batch versus single call case
+     */
+    private final static int BATCH_KEY_COUNT = BATCH_SIZES[BATCH_SIZES.length - 1];
+
+    /**
+     * payload sizes (chars) of marshalling case
+     */
+    public final static int[] PAYLOAD_SIZES = new int[]{16, 256, 4096, 32768};
+
+    private int warmupIterations = 200;
+
+    private int iterations = 2000;
+
+    private long throughputDurationMs = 2000;
+
+    private int fanoutRounds = 5;
+
+    private long fanoutTimeoutMs = 10000;
+
+    private IServiceTemplate serviceTemplate = null;
+
+    public BenchmarkRunner(IServiceTemplate serviceTemplate) {
+        this.serviceTemplate = serviceTemplate;
+    }
+
+    /**
+     * run all cases
+     *
+     * @return JSON results
+     */
+    public JSONObject runAll() throws RemoteException, JSONException, InterruptedException {
+
+        JSONObject result = new JSONObject();
+
+        result.put("format", FORMAT_VERSION);
+        result.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        result.put("sdk", Build.VERSION.SDK_INT);
+        result.put("timestamp", System.currentTimeMillis());
+
+        JSONArray cases = new JSONArray();
+
+        //benchmark overwrites default property : its value is restored at the end
+        String defaultValue = serviceTemplate.getProperties(new String[]{PropertyKeys.DEFAULT_KEY}).getValue(0);
+
+        try {
+            cases.put(runSetPropertyLatency());
+            cases.put(runGetPropertyThroughput());
+
+            for (int batchSize : BATCH_SIZES) {
+                cases.put(runBatchVersusSingle(batchSize));
+            }
+
+            cases.put(runSyncVersusAsync());
+
+            for (int payloadSize : PAYLOAD_SIZES) {
+                cases.put(runMarshalling(payloadSize));
+            }
+
+            for (int listenerCount : FANOUT_LISTENERS) {
+                cases.put(runFanout(listenerCount));
+            }
+        } finally {
+            cleanUp(defaultValue);
+        }
+
+        result.put("cases", cases);
+
+        return result;
+    }
+
+    /**
+     * remove properties written by benchmark from persisted store and restore default property
+     *
+     * @param defaultValue value of default property before benchmark (null if it didnt exist)
+     */
+    private void cleanUp(String defaultValue) throws RemoteException {
+
+        String[] keys = new String[BATCH_KEY_COUNT + 3];
+        for (int i = 0; i < BATCH_KEY_COUNT; i++) {
+            keys[i] = BATCH_KEY_PREFIX + i;
+        }
+        keys[BATCH_KEY_COUNT] = ASYNC_KEY;
+        keys[BATCH_KEY_COUNT + 1] = FANOUT_KEY;
+        keys[BATCH_KEY_COUNT + 2] = PropertyKeys.DEFAULT_KEY;
+
+        String[] values = new String[keys.length];
+        values[BATCH_KEY_COUNT + 2] = defaultValue;
+
+        serviceTemplate.setProperties(new PropertyBatch(keys, values));
+
+        Log.i(TAG, "benchmark properties removed");
+    }
+
+    /**
+     * latency of a synchronous setProperty call
+     */
+    public JSONObject runSetPropertyLatency() throws RemoteException, JSONException {
+
+        Log.i(TAG, "running setProperty latency");
+
+        for (int i = 0; i < warmupIterations; i++) {
+            serviceTemplate.setProperty("warmup" + i);
+        }
+
+        long[] samples = new long[iterations];
+
+        for (int i = 0; i < iterations; i++) {
+            String value = "value" + i;
+            long start = System.nanoTime();
+            serviceTemplate.setProperty(value);
+            samples[i] = System.nanoTime() - start;
+        }
+
+        return latencyCase("setPropertyLatency", samples);
+    }
+
+    /**
+     * number of getProperty calls completed per second from a single thread
+     */
+    public JSONObject runGetPropertyThroughput() throws RemoteException, JSONException {
+
+        Log.i(TAG, "running getProperty throughput");
+
+        for (int i = 0; i < warmupIterations; i++) {
+            serviceTemplate.getProperty();
+        }
+
+        long count = 0;
+        long start = SystemClock.elapsedRealtime();
+        long end = start + throughputDurationMs;
+        long now;
+
+        do {
+            serviceTemplate.getProperty();
+            count++;
+            now = SystemClock.elapsedRealtime();
+        } while (now < end);
+
+        JSONObject result = new JSONObject();
+        result.put("name", "getPropertyThroughput");
+        result.put("operations", count);
+        result.put("durationMs", now - start);
+        result.put("opsPerSecond", count * 1000.0 / (now - start));
+        return result;
+    }
+
+    /**
+     * latency of writing then reading N properties in one setProperties / getProperties call versus N setTypedProperty /
+     * getTypedProperty calls on the same keys
+     *
+     * @param batchSize number of properties
+     */
+    public JSONObject runBatchVersusSingle(int batchSize) throws RemoteException, JSONException {
+
+        Log.i(TAG, "running batch versus single calls (" + batchSize + " properties)");
+
+        String[] keys = new String[batchSize];
+        String[] values = new String[batchSize];
+        PropertyValue[] typedValues = new PropertyValue[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            keys[i] = BATCH_KEY_PREFIX + i;
+            values[i] = "value" + i;
+            typedValues[i] = new PropertyValue().setUtf8(values[i]);
+        }
+
+        PropertyBatch batch = new PropertyBatch(keys, values);
+
+        int rounds = Math.max(1, iterations / batchSize);
+        int warmupRounds = Math.max(1, warmupIterations / batchSize);
+
+        long[] batchWriteSamples = new long[rounds];
+        long[] singleWriteSamples = new long[rounds];
+        long[] batchReadSamples = new long[rounds];
+        long[] singleReadSamples = new long[rounds];
+
+        for (int i = -warmupRounds; i < rounds; i++) {
+
+            long start = System.nanoTime();
+            serviceTemplate.setProperties(batch);
+            long batchWrite = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int j = 0; j < batchSize; j++) {
+                serviceTemplate.setTypedProperty(keys[j], typedValues[j]);
+            }
+            long singleWrite = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            serviceTemplate.getProperties(keys);
+            long batchRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int j = 0; j < batchSize; j++) {
+                serviceTemplate.getTypedProperty(keys[j]);
+            }
+            long singleRead = System.nanoTime() - start;
+
+            //negative rounds are warmup
+            if (i >= 0) {
+                batchWriteSamples[i] = batchWrite;
+                singleWriteSamples[i] = singleWrite;
+                batchReadSamples[i] = batchRead;
+                singleReadSamples[i] = singleRead;
+            }
+        }
+
+        JSONObject write = new JSONObject();
+        write.put("batch", percentiles(batchWriteSamples));
+        write.put("single", percentiles(singleWriteSamples));
+
+        JSONObject read = new JSONObject();
+        read.put("batch", percentiles(batchReadSamples));
+        read.put("single", percentiles(singleReadSamples));
+
+        JSONObject result = new JSONObject();
+        result.put("name", "batchVersusSingle");
+        result.put("batchSize", batchSize);
+        result.put("rounds", rounds);
+        result.put("write", write);
+        result.put("read", read);
+        return result;
+    }
+
+    /**
+     * round trip of a synchronous setProperties call versus a oneway setPropertiesAsync request completed by its result callback
+     * <p/>
+     * Service binder thread occupancy for both kinds of calls can be compared with binderCallLatency in service metrics
+     */
+    public JSONObject runSyncVersusAsync() throws RemoteException, JSONException, InterruptedException {
+
+        Log.i(TAG, "running sync versus async calls");
+
+        PropertyBatch batch = new PropertyBatch(new String[]{ASYNC_KEY}, new String[]{"value"});
+
+        final CountDownLatch[] latch = new CountDownLatch[1];
+
+        IRequestCallback callback = new IRequestCallback.Stub() {
+
+            @Override
+            public void onProperties(long requestId, PropertyBatch properties) {
+            }
+
+            @Override
+            public void onCompleted(long requestId, long result) {
+                latch[0].countDown();
+            }
+
+            @Override
+            public void onError(long requestId, String message) {
+                Log.e(TAG, "request " + requestId + " failed : " + message);
+                latch[0].countDown();
+            }
+        };
+
+        long[] syncSamples = new long[iterations];
+        long[] asyncSamples = new long[iterations];
+        int completed = 0;
+
+        for (int i = 0; i < iterations; i++) {
+
+            long start = System.nanoTime();
+            serviceTemplate.setProperties(batch);
+            syncSamples[i] = System.nanoTime() - start;
+
+            latch[0] = new CountDownLatch(1);
+            start = System.nanoTime();
+            serviceTemplate.setPropertiesAsync(i, batch, callback);
+            if (!latch[0].await(fanoutTimeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "async request " + i + " timed out");
+                break;
+            }
+            asyncSamples[i] = System.nanoTime() - start;
+            completed++;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("name", "syncVersusAsync");
+        result.put("sync", percentiles(Arrays.copyOf(syncSamples, completed)));
+        result.put("async", percentiles(Arrays.copyOf(asyncSamples, completed)));
+        return result;
+    }
+
+    /**
+     * UTF-16 String versus UTF-8 PropertyValue encoding of an ASCII payload : parcel size, local marshal + unmarshal time (decoded
+     * in a reusable builder for PropertyValue) and setProperty versus setTypedProperty round trip
+     *
+     * @param payloadSize payload length in chars
+     */
+    public JSONObject runMarshalling(int payloadSize) throws RemoteException, JSONException {
+
+        Log.i(TAG, "running marshalling with " + payloadSize + " chars payload");
+
+        StringBuilder builder = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        String payload = builder.toString();
+
+        PropertyValue value = new PropertyValue().setUtf8(payload);
+        StringBuilder decoded = new StringBuilder(payloadSize);
+
+        int rounds = Math.max(1, iterations / 4);
+
+        long[] stringSamples = new long[rounds];
+        long[] valueSamples = new long[rounds];
+        long[] stringCallSamples = new long[rounds];
+        long[] valueCallSamples = new long[rounds];
+        int stringSize = 0;
+        int valueSize = 0;
+
+        Parcel parcel = Parcel.obtain();
+
+        try {
+            for (int i = 0; i < warmupIterations + rounds; i++) {
+
+                long start = System.nanoTime();
+                parcel.setDataPosition(0);
+                parcel.writeString(payload);
+                stringSize = parcel.dataPosition();
+                parcel.setDataPosition(0);
+                parcel.readString();
+                long stringTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                parcel.setDataPosition(0);
+                value.writeToParcel(parcel, 0);
+                valueSize = parcel.dataPosition();
+                parcel.setDataPosition(0);
+                decoded.setLength(0);
+                PropertyValue.CREATOR.createFromParcel(parcel).getUtf8(decoded);
+                long valueTime = System.nanoTime() - start;
+
+                if (i >= warmupIterations) {
+                    stringSamples[i - warmupIterations] = stringTime;
+                    valueSamples[i - warmupIterations] = valueTime;
+                }
+            }
+        } finally {
+            parcel.recycle();
+        }
+
+        for (int i = 0; i < rounds; i++) {
+
+            long start = System.nanoTime();
+            serviceTemplate.setProperty(payload);
+            stringCallSamples[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            serviceTemplate.setTypedProperty(PropertyKeys.DEFAULT_KEY, value);
+            valueCallSamples[i] = System.nanoTime() - start;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("name", "marshalling");
+        result.put("payloadSize", payloadSize);
+        result.put("stringBytes", stringSize);
+        result.put("utf8Bytes", valueSize);
+        result.put("string", percentiles(stringSamples));
+        result.put("utf8", percentiles(valueSamples));
+        result.put("stringCall", percentiles(stringCallSamples));
+        result.put("utf8Call", percentiles(valueCallSamples));
+        return result;
+    }
+
+    /**
+     * latency between a property change and its notification to all listeners
+     * <p/>
+     * Listeners are registered in this process with a key filter so that they only receive benchmark property. Both
+     * latency of the slowest listener (from write) and spread between first and last listener are measured
+     *
+     * @param listenerCount number of listeners to register
+     */
+    public JSONObject runFanout(int listenerCount) throws RemoteException, JSONException, InterruptedException {
+
+        Log.i(TAG, "running fan-out with " + listenerCount + " listeners");
+
+        SubscriptionOptions options = new SubscriptionOptions();
+        options.setKeys(new String[]{FANOUT_KEY});
+
+        final AtomicLong firstReceived = new AtomicLong();
+        final AtomicLong lastReceived = new AtomicLong();
+        final CountDownLatch[] latch = new CountDownLatch[1];
+        final String[] expected = new String[1];
+
+        ArrayList<String> listenerIds = new ArrayList<>();
+
+        long[] endToEnd = new long[fanoutRounds];
+        long[] spread = new long[fanoutRounds];
+        int completed = 0;
+
+        try {
+            for (int i = 0; i < listenerCount; i++) {
+
+                IPropertyListener listener = new IPropertyListener.Stub() {
+
+                    @Override
+                    public void onPropertyChange(String propertyValue) {
+                    }
+
+                    @Override
+                    public void onSnapshotReady(long version, int length) {
+                    }
+
+                    @Override
+                    public void onPropertyVersion(String propertyValue, long version) {
+                    }
+
+                    @Override
+                    public void onPropertyDelta(PropertyDelta delta) {
+                    }
+
+                    @Override
+                    public void onReplay(PropertyBatch changes, long completeFrom, boolean last) {
+                    }
+
+                    @Override
+                    public void onLargeValue(String key, long version, int length) {
+                    }
+
+                    @Override
+                    public void onChannelClosed(String reason) {
+                    }
+
+                    @Override
+                    public void onTypedChange(String key, PropertyValue value, long version) {
+                    }
+
+                    @Override
+                    public void onKeyChange(String key, String value, long version) {
+
+                        long now = System.nanoTime();
+
+                        synchronized (latch) {
+                            if (latch[0] == null || !value.equals(expected[0]))
+                                return;
+                            if (firstReceived.get() == 0)
+                                firstReceived.set(now);
+                            lastReceived.set(now);
+                            latch[0].countDown();
+                        }
+                    }
+                };
+                listenerIds.add(serviceTemplate.registerListenerWithOptions(listener, options));
+            }
+
+            for (int round = 0; round < fanoutRounds; round++) {
+
+                String value = "round" + round + "-" + System.nanoTime();
+
+                synchronized (latch) {
+                    latch[0] = new CountDownLatch(listenerCount);
+                    expected[0] = value;
+                    firstReceived.set(0);
+                    lastReceived.set(0);
+                }
+
+                long start = System.nanoTime();
+
+                serviceTemplate.setProperties(new PropertyBatch(new String[]{FANOUT_KEY}, new String[]{value}));
+
+                if (!latch[0].await(fanoutTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    Log.e(TAG, "fan-out round " + round + " timed out");
+                    continue;
+                }
+
+                synchronized (latch) {
+                    endToEnd[completed] = lastReceived.get() - start;
+                    spread[completed] = lastReceived.get() - firstReceived.get();
+                }
+                completed++;
+            }
+        } finally {
+            synchronized (latch) {
+                latch[0] = null;
+            }
+            for (String listenerId : listenerIds) {
+                serviceTemplate.removeListener(listenerId);
+            }
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("name", "fanout");
+        result.put("listeners", listenerCount);
+        result.put("rounds", fanoutRounds);
+        result.put("completedRounds", completed);
+        result.put("endToEnd", percentiles(Arrays.copyOf(endToEnd, completed)));
+        result.put("spread", percentiles(Arrays.copyOf(spread, completed)));
+        return result;
+    }
+
+    private JSONObject latencyCase(String name, long[] samples) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("iterations", samples.length);
+        result.put("latency", percentiles(samples));
+        return result;
+    }
+
+    /**
+     * summarize latency samples
+     *
+     * @param samples latencies in nanoseconds (sorted in place)
+     * @return min/mean/percentiles/max
+     */
+    private static JSONObject percentiles(long[] samples) throws JSONException {
+
+        JSONObject result = new JSONObject();
+
+        if (samples.length == 0)
+            return result;
+
+        Arrays.sort(samples);
+
+        long sum = 0;
+        for (long sample : samples) {
+            sum += sample;
+        }
+
+        result.put("min", samples[0]);
+        result.put("mean", sum / samples.length);
+        result.put("p50", samples[(int) (samples.length * 0.50)]);
+        result.put("p90", samples[(int) (samples.length * 0.90)]);
+        result.put("p99", samples[(int) (samples.length * 0.99)]);
+        result.put("max", samples[samples.length - 1]);
+        return result;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public void setThroughputDurationMs(long throughputDurationMs) {
+        this.throughputDurationMs = throughputDurationMs;
+    }
+
+    public void setFanoutRounds(int fanoutRounds) {
+        this.fanoutRounds = fanoutRounds;
+    }
+}
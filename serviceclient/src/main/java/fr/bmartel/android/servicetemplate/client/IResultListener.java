@@ -21,36 +21,27 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-/*
-	Pid utils functions
+package fr.bmartel.android.servicetemplate.client;
 
-	@author Bertrand Martel
-	@version 0.1
-
-*/
-#ifdef __ANDROID__
-
-#include <android/log.h> 
-#include <sys/types.h>
-#include <signal.h>
-
-
-#include <jni.h>
-
-
-/* Start up the SDL app */
-JNIEXPORT jboolean JNICALL Java_fr_bmartel_android_servicetemplate_service_TemplateService_nativeIsPid(JNIEnv* env, jclass cls,jint pid)
-{
-	int exist = getpgid(pid);
-
-	__android_log_print(ANDROID_LOG_VERBOSE,"pid","getpid : %d\n",exist);
+/**
+ * Listener used by activities to retrieve result of an asynchronous service call (called on main thread)
+ *
+ * @author Bertrand Martel
+ */
+public interface IResultListener<T> {
+
+    /**
+     * called when service call succeeded
+     *
+     * @param result call result
+     */
+    public void onResult(T result);
+
+    /**
+     * called when service call failed
+     *
+     * @param error call error
+     */
+    public void onError(Exception error);
 
-	if (exist >= 0){
-		return JNI_TRUE;
-	}
-	else{
-		return JNI_FALSE;
-	}
 }
-
-#endif /* __ANDROID__ */
\ No newline at end of file
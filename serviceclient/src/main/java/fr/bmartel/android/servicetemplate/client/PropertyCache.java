@@ -0,0 +1,101 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.client;
+
+/**
+ * Local copy of a property value kept coherent by the versioned notification stream of the service
+ * <p/>
+ * A value is only replaced by a newer version so that a notification and a remote read received out of order cant
+ * bring back an old value. Cache is invalidated when the stream is broken (disconnection, delta gap)
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyCache {
+
+    private String value = null;
+
+    private long version = 0;
+
+    private boolean valid = false;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    public PropertyCache() {
+    }
+
+    /**
+     * update cached value if version is newer than cached one
+     *
+     * @param value   property value
+     * @param version property version
+     * @return true if cache has been updated
+     */
+    public synchronized boolean update(String value, long version) {
+
+        if (valid && version <= this.version)
+            return false;
+
+        this.value = value;
+        this.version = version;
+        this.valid = true;
+        return true;
+    }
+
+    /**
+     * invalidate cache : next read must be done on service
+     */
+    public synchronized void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * @return cached value or null if cache is not valid
+     */
+    public synchronized String get() {
+        if (!valid) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return value;
+    }
+
+    public synchronized boolean isValid() {
+        return valid;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
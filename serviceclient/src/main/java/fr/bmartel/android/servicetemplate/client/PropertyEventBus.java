@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.client;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process fan-out of property changes received through the single remote listener of {@link ServiceSingleton}
+ * <p/>
+ * Listeners are weakly referenced so that a component which doesnt unregister (an Activity for instance) is not leaked.
+ * The caller must keep a strong reference on its listener as long as it wants to be notified.
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyEventBus {
+
+    private CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * a listener with the executor its notifications are delivered on
+     */
+    private static class Subscriber {
+
+        private final WeakReference<ISingletonListener> listener;
+
+        private final Executor executor;
+
+        public Subscriber(ISingletonListener listener, Executor executor) {
+            this.listener = new WeakReference<>(listener);
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * executor posting on a Looper
+     */
+    private static class LooperExecutor implements Executor {
+
+        private final Handler handler;
+
+        public LooperExecutor(Looper looper) {
+            handler = new Handler(looper);
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            handler.post(runnable);
+        }
+    }
+
+    public PropertyEventBus() {
+    }
+
+    /**
+     * add a listener notified on a Looper
+     *
+     * @param listener listener (weakly referenced)
+     * @param looper   looper notifications are delivered on
+     */
+    public void addListener(ISingletonListener listener, Looper looper) {
+        addListener(listener, new LooperExecutor(looper));
+    }
+
+    /**
+     * add a listener notified on an executor
+     *
+     * @param listener listener (weakly referenced)
+     * @param executor executor notifications are delivered on (must execute tasks in order to keep notifications ordered)
+     */
+    public void addListener(ISingletonListener listener, Executor executor) {
+        subscribers.add(new Subscriber(listener, executor));
+    }
+
+    /**
+     * remove a listener
+     *
+     * @param listener listener to remove
+     */
+    public void removeListener(ISingletonListener listener) {
+        for (Subscriber subscriber : subscribers) {
+            ISingletonListener current = subscriber.listener.get();
+            if (current == null || current == listener)
+                subscribers.remove(subscriber);
+        }
+    }
+
+    /**
+     * deliver a value to all listeners. Listeners that have been garbage collected are removed
+     *
+     * @param value property value
+     */
+    public void post(final String value) {
+
+        for (Subscriber subscriber : subscribers) {
+
+            final ISingletonListener listener = subscriber.listener.get();
+
+            if (listener == null) {
+                subscribers.remove(subscriber);
+                continue;
+            }
+
+            subscriber.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPropertyValueChanged(value);
+                }
+            });
+        }
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+}
@@ -27,12 +27,42 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.bmartel.android.servicetemplate.servicelib.FrameReader;
+import fr.bmartel.android.servicetemplate.servicelib.FrameWriter;
 import fr.bmartel.android.servicetemplate.servicelib.IPropertyListener;
+import fr.bmartel.android.servicetemplate.servicelib.IRequestCallback;
 import fr.bmartel.android.servicetemplate.servicelib.IServiceTemplate;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyBatch;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyDelta;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyKeys;
+import fr.bmartel.android.servicetemplate.servicelib.PropertyValue;
+import fr.bmartel.android.servicetemplate.servicelib.SharedSnapshot;
+import fr.bmartel.android.servicetemplate.servicelib.SubscriptionOptions;
 
 /**
  * Singleton object used to bind with service and interact with activities
@@ -50,7 +80,39 @@ public class ServiceSingleton {
     /**
      * serviceTemplate binding
      */
-    private IServiceTemplate serviceTemplate = null;
+    private volatile IServiceTemplate serviceTemplate = null;
+
+    /**
+     * executor running binder calls out of main thread
+     */
+    private ExecutorService ipcExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "service-ipc");
+        }
+    });
+
+    /**
+     * handler used to deliver asynchronous call results on main thread
+     */
+    private Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * calls issued before service is connected
+     */
+    private ArrayList<ServiceCall<?>> pendingCalls = new ArrayList<>();
+
+    /**
+     * asynchronous requests sent to service and waiting for their result callback
+     */
+    private ConcurrentHashMap<Long, PendingRequest<?>> pendingRequests = new ConcurrentHashMap<>();
+
+    private AtomicLong requestIds = new AtomicLong();
+
+    /**
+     * callbacks processed since credits were last granted to service (listener registered with flow control)
+     */
+    private AtomicInteger consumedCredits = new AtomicInteger();
 
     /**
      * determine if service has been bound or not
@@ -62,14 +124,150 @@ public class ServiceSingleton {
     /**
      * service package to bind
      */
-    private static String SERVICE_PACKAGE = "fr.bmartel.android.servicetemplate.service";
+    static String SERVICE_PACKAGE = "fr.bmartel.android.servicetemplate.service";
 
     /**
      * service class to bind
      */
-    private static String SERVICE_CLASS = "TemplateService";
+    static String SERVICE_CLASS = "TemplateService";
+
+    /**
+     * service classes of optional shards (first one is primary service)
+     */
+    private final static String[] SHARD_CLASSES = new String[]{
+            SERVICE_CLASS, "TemplateShardService$Shard1", "TemplateShardService$Shard2", "TemplateShardService$Shard3"
+    };
+
+    /**
+     * number of shards clients are spread on (1 : primary service only)
+     */
+    private int shardCount = 1;
+
+    /**
+     * key routing this client to a shard (package name by default)
+     */
+    private String routingKey = null;
+
+    /**
+     * in-process listeners notified through the single listener registered on service
+     */
+    private PropertyEventBus eventBus = new PropertyEventBus();
+
+    /**
+     * delivery options used to register property listener (versioned stream is always enabled to keep cache coherent)
+     */
+    private SubscriptionOptions subscriptionOptions = new SubscriptionOptions();
+
+    /**
+     * options current property listener has been registered with (copy of subscription options with deltas enabled)
+     */
+    private volatile SubscriptionOptions listenerOptions = null;
+
+    /**
+     * local copy of property value kept coherent by notifications
+     */
+    private PropertyCache propertyCache = new PropertyCache();
+
+    /**
+     * true when property listener is registered : only then cache can be filled by a remote read
+     */
+    private volatile boolean listenerRegistered = false;
+
+    /**
+     * shared snapshot region used by service for large values
+     */
+    private SharedSnapshot sharedSnapshot = null;
+
+    /**
+     * property version of last value read in shared snapshot region
+     */
+    private long snapshotVersion = 0;
+
+    /**
+     * identifier of property listener registered on service
+     */
+    private volatile String listenerId = null;
+
+    /**
+     * listener registered on service (identifies it in oneway calls along with its id)
+     */
+    private volatile IPropertyListener propertyListener = null;
+
+    /**
+     * last value received and its version (base of next delta)
+     */
+    private String lastValue = null;
+
+    private long lastVersion = 0;
+
+    /**
+     * incremented each time notification stream or snapshot region is reset (guarded by this) : a result of a binder call made
+     * without holding the lock is dropped if a reset happened meanwhile
+     */
+    private long streamGeneration = 0;
+
+    /**
+     * generation value accepting a result whatever resets happened
+     */
+    private final static long ANY_GENERATION = -1;
 
-    private ISingletonListener singletonListener = null;
+    /**
+     * first reconnection delay in ms (doubled on each attempt up to MAX_RECONNECT_DELAY)
+     */
+    private final static long INITIAL_RECONNECT_DELAY = 100;
+
+    private final static long MAX_RECONNECT_DELAY = 30000;
+
+    /**
+     * intent used to bind service (kept to rebind after a disconnection)
+     */
+    private Intent serviceIntent = null;
+
+    /**
+     * next reconnection delay before jitter in ms
+     */
+    private long reconnectDelay = INITIAL_RECONNECT_DELAY;
+
+    private Random reconnectJitter = new Random();
+
+    /**
+     * time of disconnection (SystemClock.elapsedRealtime), 0 while connected
+     */
+    private volatile long disconnectTime = 0;
+
+    private int reconnectAttempts = 0;
+
+    /**
+     * time between last disconnection and resync of property state in ms
+     */
+    private volatile long lastRecoveryTime = 0;
+
+    private volatile long maxRecoveryTime = 0;
+
+    private volatile int recoveryCount = 0;
+
+    /**
+     * rebind service if it has not been reconnected by system (executed on main thread)
+     */
+    private Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+
+            if (!bound || serviceTemplate != null)
+                return;
+
+            reconnectAttempts++;
+
+            Log.i(TAG, "reconnecting to service (attempt " + reconnectAttempts + ")");
+
+            context.unbindService(serviceConnection);
+
+            if (!context.bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE))
+                Log.e(TAG, "Error cant bind to service !");
+
+            scheduleReconnect();
+        }
+    };
 
     private ServiceSingleton() {
     }
@@ -102,7 +300,7 @@ public class ServiceSingleton {
 
             this.context = context;
 
-            Intent intent = buildExplicitIntent(SERVICE_PACKAGE, SERVICE_CLASS);
+            serviceIntent = buildExplicitIntent(SERVICE_PACKAGE, getServiceClass(context));
 
             serviceConnection = new ServiceConnection() {
 
@@ -111,23 +309,26 @@ public class ServiceSingleton {
                     Log.i(TAG, "onServiceConnected");
                     serviceTemplate = IServiceTemplate.Stub.asInterface(service);
 
-                    try {
-
-                        String ret = serviceTemplate.registerListener(new IPropertyListener.Stub() {
-
-                            @Override
-                            public void onPropertyChange(final String propertyValue) {
+                    mainHandler.removeCallbacks(reconnectTask);
+                    reconnectDelay = INITIAL_RECONNECT_DELAY;
+                    reconnectAttempts = 0;
 
-                                Log.i(TAG, "onPropertyChange : " + propertyValue);
-                                if (singletonListener != null)
-                                    singletonListener.onPropertyValueChanged(propertyValue);
+                    //listener registration and pending calls are executed out of main thread
+                    ipcExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            registerPropertyListener();
+                            resync();
+                        }
+                    });
 
-                            }
-                        });
-
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
+                    synchronized (pendingCalls) {
+                        for (ServiceCall<?> call : pendingCalls) {
+                            ipcExecutor.execute(call);
+                        }
+                        pendingCalls.clear();
                     }
+
                     Log.i(TAG, "onServiceConnected end");
                 }
 
@@ -136,10 +337,17 @@ public class ServiceSingleton {
 
                     Log.i(TAG, "onServiceDisconnected");
                     serviceTemplate = null;
+                    resetStream();
+                    closeSnapshot();
+                    failPendingRequests("service disconnected");
+
+                    //service process died : system restarts it but binding is checked with backoff in case it doesnt
+                    disconnectTime = SystemClock.elapsedRealtime();
+                    scheduleReconnect();
                 }
             };
 
-            bound = context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+            bound = context.bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE);
 
             if (!bound) {
                 Log.e(TAG, "Error cant bind to service !");
@@ -148,6 +356,322 @@ public class ServiceSingleton {
         return bound;
     }
 
+    /**
+     * schedule a reconnection attempt after a jittered exponential delay
+     */
+    private void scheduleReconnect() {
+
+        //jitter between 50% and 150% of delay so that all clients of a crashed service dont rebind at the same time
+        long delay = (long) (reconnectDelay * (0.5 + reconnectJitter.nextDouble()));
+
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+
+        mainHandler.removeCallbacks(reconnectTask);
+        mainHandler.postDelayed(reconnectTask, delay);
+    }
+
+    /**
+     * read current property state after (re)connection : a change made while disconnected is notified to activities
+     * (executed on IPC executor after listener registration)
+     */
+    private void resync() {
+
+        IServiceTemplate serviceTemplate = this.serviceTemplate;
+
+        if (serviceTemplate == null)
+            return;
+
+        long knownVersion = propertyCache.getVersion();
+        long version;
+
+        try {
+            PropertyBatch batch = serviceTemplate.getProperties(new String[]{PropertyKeys.DEFAULT_KEY});
+
+            String value = batch.getValue(0);
+            version = batch.getVersion(0);
+
+            if (value != null) {
+                synchronized (this) {
+                    //a newer notification may have been received meanwhile
+                    if (version > lastVersion) {
+                        lastValue = value;
+                        lastVersion = version;
+                    }
+                    if (propertyCache.update(value, version) && version != knownVersion)
+                        eventBus.post(value);
+                }
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        long disconnectTime = this.disconnectTime;
+
+        if (disconnectTime != 0) {
+
+            long recoveryTime = SystemClock.elapsedRealtime() - disconnectTime;
+
+            this.disconnectTime = 0;
+            lastRecoveryTime = recoveryTime;
+            maxRecoveryTime = Math.max(maxRecoveryTime, recoveryTime);
+            recoveryCount++;
+
+            Log.i(TAG, "recovered from disconnection in " + recoveryTime + "ms (version " + knownVersion + " => " + version + ")");
+        }
+    }
+
+    /**
+     * get service class to bind : client is routed to a shard with a consistent hash of its routing key
+     *
+     * @param context Application context
+     * @return service class name
+     */
+    private String getServiceClass(Context context) {
+
+        if (shardCount <= 1)
+            return SERVICE_CLASS;
+
+        String key = (routingKey != null) ? routingKey : context.getPackageName();
+
+        String serviceClass = SHARD_CLASSES[new ShardRing(shardCount).getShard(key)];
+
+        Log.i(TAG, "routing " + key + " to " + serviceClass);
+
+        return serviceClass;
+    }
+
+    /**
+     * @return time between last disconnection from service and resync of property state in ms (0 if never disconnected)
+     */
+    public long getLastRecoveryTime() {
+        return lastRecoveryTime;
+    }
+
+    /**
+     * @return longest time between a disconnection from service and resync of property state in ms
+     */
+    public long getMaxRecoveryTime() {
+        return maxRecoveryTime;
+    }
+
+    /**
+     * @return number of recoveries from a disconnection
+     */
+    public int getRecoveryCount() {
+        return recoveryCount;
+    }
+
+    /**
+     * set number of service shards used from next binding. All processes of an application should use the same value
+     *
+     * @param shardCount number of shards from 1 (primary service only) to 4
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount < 1 || shardCount > SHARD_CLASSES.length)
+            throw new IllegalArgumentException("shard count must be between 1 and " + SHARD_CLASSES.length);
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * set key routing this client to a shard (package name by default)
+     *
+     * @param routingKey routing key
+     */
+    public void setRoutingKey(String routingKey) {
+        this.routingKey = routingKey;
+    }
+
+    /**
+     * register property listener on service (executed on IPC executor)
+     */
+    private void registerPropertyListener() {
+
+        IServiceTemplate serviceTemplate = this.serviceTemplate;
+
+        if (serviceTemplate == null)
+            return;
+
+        try {
+
+            IPropertyListener propertyListener = new IPropertyListener.Stub() {
+
+                @Override
+                public void onPropertyChange(final String propertyValue) {
+
+                    Log.i(TAG, "onPropertyChange : " + propertyValue);
+
+                    //value without version cant be ordered with cached value
+                    propertyCache.invalidate();
+
+                    eventBus.post(propertyValue);
+
+                    returnCredit();
+                }
+
+                @Override
+                public void onSnapshotReady(long version, int length) {
+
+                    Log.i(TAG, "onSnapshotReady : version " + version + " (" + length + " bytes)");
+
+                    String propertyValue = readSnapshot();
+
+                    if (propertyValue != null)
+                        onVersionedValue(propertyValue, snapshotVersion);
+
+                    returnCredit();
+                }
+
+                @Override
+                public void onPropertyVersion(String propertyValue, long version) {
+                    onVersionedValue(propertyValue, version);
+                    returnCredit();
+                }
+
+                @Override
+                public void onPropertyDelta(PropertyDelta delta) {
+                    onDelta(delta);
+                    returnCredit();
+                }
+
+                @Override
+                public void onKeyChange(String key, String value, long version) {
+                    Log.i(TAG, "onKeyChange : " + key + " = " + value);
+                    returnCredit();
+                }
+
+                @Override
+                public void onTypedChange(String key, PropertyValue value, long version) {
+                    if (PropertyKeys.DEFAULT_KEY.equals(key) && !value.isNull())
+                        onVersionedValue(value.toString(), version);
+                    else
+                        Log.i(TAG, "onTypedChange : " + key + " = " + value);
+
+                    returnCredit();
+                }
+
+                @Override
+                public void onReplay(PropertyBatch changes, long completeFrom, boolean last) {
+
+                    Log.i(TAG, "onReplay : " + changes.size() + " changes (complete from version " + completeFrom + ")");
+
+                    for (int i = 0; i < changes.size(); i++) {
+                        if (PropertyKeys.DEFAULT_KEY.equals(changes.getKey(i)) && changes.getValue(i) != null)
+                            onVersionedValue(changes.getValue(i), changes.getVersion(i));
+                    }
+                    returnCredit();
+                }
+
+                @Override
+                public void onLargeValue(String key, long version, int length) {
+
+                    Log.i(TAG, "onLargeValue : " + key + " version " + version + " (" + length + " bytes)");
+
+                    //value is not sent in callbacks : it is read on service
+                    if (PropertyKeys.DEFAULT_KEY.equals(key))
+                        resync();
+
+                    returnCredit();
+                }
+
+                @Override
+                public void onChannelClosed(String reason) {
+                    recoverListener(this, reason);
+                }
+            };
+
+            //options given by caller are left untouched
+            SubscriptionOptions options = new SubscriptionOptions(subscriptionOptions);
+            options.setDeltas(true);
+
+            //a new registration starts with a full credit window
+            consumedCredits.set(0);
+
+            this.propertyListener = propertyListener;
+            this.listenerOptions = options;
+            listenerId = serviceTemplate.registerListenerWithOptions(propertyListener, options);
+            listenerRegistered = true;
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * service closed notification channel of a listener (lag or failed callback) : listener is registered again and value resynced
+     * (executed on IPC executor)
+     *
+     * @param closedListener listener whose channel has been closed
+     * @param reason         reason given by service
+     */
+    private void recoverListener(final IPropertyListener closedListener, String reason) {
+
+        Log.e(TAG, "notification channel closed by service : " + reason);
+
+        ipcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                String closedListenerId;
+                synchronized (ServiceSingleton.this) {
+                    //listener already replaced by a new registration
+                    if (propertyListener != closedListener)
+                        return;
+                    closedListenerId = listenerId;
+                    resetStream();
+                }
+
+                IServiceTemplate serviceTemplate = ServiceSingleton.this.serviceTemplate;
+                if (serviceTemplate == null)
+                    return;
+
+                try {
+                    if (closedListenerId != null)
+                        serviceTemplate.removeListener(closedListenerId);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+
+                registerPropertyListener();
+                resync();
+            }
+        });
+    }
+
+    /**
+     * return the credit consumed by a processed callback when listener is registered with flow control. Credits are granted by half
+     * window so that service is not stalled while a grant is in flight
+     */
+    private void returnCredit() {
+
+        SubscriptionOptions listenerOptions = this.listenerOptions;
+
+        if (listenerOptions == null)
+            return;
+
+        int window = listenerOptions.getInitialCredits();
+
+        if (window <= 0)
+            return;
+
+        int consumed = consumedCredits.incrementAndGet();
+
+        IServiceTemplate serviceTemplate = this.serviceTemplate;
+        String listenerId = this.listenerId;
+        IPropertyListener propertyListener = this.propertyListener;
+
+        if (consumed < Math.max(1, window / 2) || serviceTemplate == null || listenerId == null || propertyListener == null)
+            return;
+
+        consumedCredits.addAndGet(-consumed);
+
+        try {
+            serviceTemplate.grantCredits(listenerId, propertyListener, consumed);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Build an explicit intent from package name and service class name
      *
@@ -170,13 +694,30 @@ public class ServiceSingleton {
 
             Log.i(TAG, "unbinding service ...");
 
+            mainHandler.removeCallbacks(reconnectTask);
+            disconnectTime = 0;
+            reconnectDelay = INITIAL_RECONNECT_DELAY;
+
             //if you remove serviceTemplate.removeListeners() listeners will be cleaned automatically when application will be killed
-            try {
-                if (serviceTemplate != null)
-                    serviceTemplate.removeListeners();
-            } catch (RemoteException e) {
-                e.printStackTrace();
+            final IServiceTemplate serviceTemplate = this.serviceTemplate;
+
+            if (serviceTemplate != null) {
+                ipcExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serviceTemplate.removeListeners();
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
             }
+            this.serviceTemplate = null;
+
+            failPendingCalls();
+            resetStream();
+            closeSnapshot();
 
             this.context.unbindService(serviceConnection);
             serviceConnection = null;
@@ -186,11 +727,856 @@ public class ServiceSingleton {
     }
 
     /**
-     * register a listener between an activity and singleton
+     * apply a delta on last value received. If delta is not based on last value, full value is retrieved from service
+     *
+     * @param delta change against last value sent by service
+     */
+    private void onDelta(PropertyDelta delta) {
+
+        String value;
+        long generation;
+
+        synchronized (this) {
+
+            if (lastValue != null && delta.getBaseVersion() == lastVersion) {
+                value = delta.apply(lastValue);
+                generation = streamGeneration;
+            } else {
+                Log.i(TAG, "delta base " + delta.getBaseVersion() + " doesnt match last version " + lastVersion + ". Resync");
+                value = null;
+                generation = streamGeneration;
+                propertyCache.invalidate();
+            }
+        }
+
+        if (value != null) {
+            onVersionedValue(value, delta.getVersion(), generation);
+            return;
+        }
+
+        //full value is read without holding the lock : unbindService must not wait for service
+        try {
+            IServiceTemplate serviceTemplate = this.serviceTemplate;
+            if (serviceTemplate != null) {
+                PropertyBatch batch = serviceTemplate.getProperties(new String[]{PropertyKeys.DEFAULT_KEY});
+                if (batch.getValue(0) != null)
+                    onVersionedValue(batch.getValue(0), batch.getVersion(0), generation);
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * notification stream is broken : cached value and delta base cant be trusted anymore
+     */
+    private synchronized void resetStream() {
+        streamGeneration++;
+        listenerRegistered = false;
+        listenerId = null;
+        propertyListener = null;
+        lastValue = null;
+        lastVersion = 0;
+        propertyCache.invalidate();
+    }
+
+    /**
+     * store last value received, acknowledge it and notify activity
+     *
+     * @param value   property value
+     * @param version property version
+     */
+    private void onVersionedValue(String value, long version) {
+        onVersionedValue(value, version, ANY_GENERATION);
+    }
+
+    /**
+     * store last value received if stream has not been reset since it was requested, acknowledge it and notify activity
+     *
+     * @param value      property value
+     * @param version    property version
+     * @param generation stream generation when value was requested (ANY_GENERATION to skip check)
+     */
+    private void onVersionedValue(String value, long version, long generation) {
+
+        String listenerId;
+        IPropertyListener propertyListener;
+
+        synchronized (this) {
+
+            if (generation != ANY_GENERATION && generation != streamGeneration)
+                return;
+
+            //values are stored out of the lock that produced them : an older one may come last
+            if (version >= lastVersion) {
+                lastValue = value;
+                lastVersion = version;
+            }
+
+            listenerId = this.listenerId;
+            propertyListener = this.propertyListener;
+
+            //an older version may be received after a remote read of a newer one
+            if (propertyCache.update(value, version))
+                eventBus.post(value);
+        }
+
+        try {
+            IServiceTemplate serviceTemplate = this.serviceTemplate;
+            if (serviceTemplate != null && listenerId != null && propertyListener != null)
+                serviceTemplate.acknowledge(listenerId, propertyListener, version);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * a write of this client completed : cached value it replaced must not be served anymore. Cache is filled again by the
+     * notification of the write or by next remote read
+     *
+     * @param key written property key
+     */
+    private void onPropertyWritten(String key) {
+        if (PropertyKeys.DEFAULT_KEY.equals(key))
+            propertyCache.invalidate();
+    }
+
+    /**
+     * @param properties properties written by this client
+     */
+    private void onPropertiesWritten(PropertyBatch properties) {
+        for (int i = 0; i < properties.size(); i++) {
+            onPropertyWritten(properties.getKey(i));
+        }
+    }
+
+    /**
+     * read property value on service and fill cache if notification stream is up
+     *
+     * @param serviceTemplate service binding
+     * @return property value
+     * @throws RemoteException
+     */
+    private String readProperty(IServiceTemplate serviceTemplate) throws RemoteException {
+
+        boolean registered = listenerRegistered;
+
+        PropertyBatch batch = serviceTemplate.getProperties(new String[]{PropertyKeys.DEFAULT_KEY});
+
+        String value = (batch.getValue(0) != null) ? batch.getValue(0) : "";
+
+        if (registered && listenerRegistered)
+            propertyCache.update(value, batch.getVersion(0));
+
+        return value;
+    }
+
+    /**
+     * retrieve property value from local cache. If cache is not valid, value is read on service (blocking call)
+     *
+     * @return property value or null if service is not connected
+     */
+    public String getCachedProperty() {
+
+        String value = propertyCache.get();
+
+        if (value != null)
+            return value;
+
+        IServiceTemplate serviceTemplate = this.serviceTemplate;
+
+        if (serviceTemplate == null)
+            return null;
+
+        try {
+            return readProperty(serviceTemplate);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * read property value published in shared snapshot region (region is mapped on first use)
+     *
+     * @return property value or null if snapshot couldnt be read
+     */
+    private String readSnapshot() {
+
+        long generation;
+
+        synchronized (this) {
+            generation = streamGeneration;
+        }
+
+        IServiceTemplate serviceTemplate = this.serviceTemplate;
+
+        //region is mapped without holding the lock : unbindService must not wait for service
+        if (!isSnapshotMapped() && serviceTemplate != null) {
+            try {
+                ParcelFileDescriptor descriptor = serviceTemplate.getSnapshotDescriptor();
+
+                if (descriptor != null) {
+                    SharedSnapshot snapshot = new SharedSnapshot(descriptor);
+
+                    synchronized (this) {
+                        if (sharedSnapshot == null && generation == streamGeneration) {
+                            sharedSnapshot = snapshot;
+                            snapshot = null;
+                        }
+                    }
+
+                    //region mapped concurrently or closed meanwhile
+                    if (snapshot != null)
+                        snapshot.close();
+                }
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        synchronized (this) {
+
+            if (sharedSnapshot == null)
+                return null;
+
+            String value = sharedSnapshot.readString();
+            snapshotVersion = sharedSnapshot.getLastVersion();
+            return value;
+        }
+    }
+
+    private synchronized boolean isSnapshotMapped() {
+        return sharedSnapshot != null;
+    }
+
+    private synchronized void closeSnapshot() {
+        streamGeneration++;
+        if (sharedSnapshot != null) {
+            sharedSnapshot.close();
+            sharedSnapshot = null;
+        }
+    }
+
+    /**
+     * A binder call executed on IPC executor
+     */
+    private interface IServiceCall<T> {
+
+        T call(IServiceTemplate serviceTemplate) throws RemoteException;
+
+    }
+
+    /**
+     * execute a binder call on IPC executor. If service is not connected yet, call is queued until connection
+     *
+     * @param serviceCall binder call
+     * @param listener    listener called on main thread with call result (may be null)
+     * @return future of call result
+     */
+    private <T> Future<T> submit(final IServiceCall<T> serviceCall, final IResultListener<T> listener) {
+
+        ServiceCall<T> task = new ServiceCall<>(serviceCall, listener);
+
+        synchronized (pendingCalls) {
+            if (serviceTemplate == null) {
+                pendingCalls.add(task);
+                return task;
+            }
+        }
+        ipcExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * fail calls queued while service was not connected : they will never be executed since service is unbound
+     */
+    private void failPendingCalls() {
+
+        synchronized (pendingCalls) {
+            for (ServiceCall<?> call : pendingCalls) {
+                call.fail(new IllegalStateException("service unbound"));
+            }
+            pendingCalls.clear();
+        }
+    }
+
+    /**
+     * A binder call executed on IPC executor, result is delivered to its listener on main thread
+     */
+    private class ServiceCall<T> extends FutureTask<T> {
+
+        private IResultListener<T> listener;
+
+        public ServiceCall(final IServiceCall<T> serviceCall, IResultListener<T> listener) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    IServiceTemplate serviceTemplate = ServiceSingleton.this.serviceTemplate;
+                    if (serviceTemplate == null)
+                        throw new DeadObjectException();
+                    return serviceCall.call(serviceTemplate);
+                }
+            });
+            this.listener = listener;
+        }
+
+        @Override
+        protected void done() {
+            if (listener != null && !isCancelled())
+                postResult(this, listener);
+        }
+
+        protected void fail(Exception e) {
+            setException(e);
+        }
+    }
+
+    /**
+     * deliver result of a completed call on main thread
+     *
+     * @param future   completed call
+     * @param listener result listener
+     */
+    private <T> void postResult(final Future<T> future, final IResultListener<T> listener) {
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    listener.onError((e.getCause() instanceof Exception) ? (Exception) e.getCause() : e);
+                    return;
+                } catch (InterruptedException e) {
+                    listener.onError(e);
+                    return;
+                }
+                listener.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * retrieve property value without blocking caller thread. Value is served from local cache when it is valid
+     *
+     * @param listener listener called on main thread with property value (may be null)
+     * @return future of property value
+     */
+    public Future<String> getProperty(IResultListener<String> listener) {
+
+        final String cachedValue = propertyCache.get();
+
+        if (cachedValue != null) {
+            FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return cachedValue;
+                }
+            });
+            task.run();
+            if (listener != null)
+                postResult(task, listener);
+            return task;
+        }
+
+        return submit(new IServiceCall<String>() {
+            @Override
+            public String call(IServiceTemplate serviceTemplate) throws RemoteException {
+                return readProperty(serviceTemplate);
+            }
+        }, listener);
+    }
+
+    /**
+     * set property value without blocking caller thread
+     *
+     * @param value    property value
+     * @param listener listener called on main thread when value is set (may be null)
+     * @return future completed when value is set
+     */
+    public Future<Void> setProperty(final String value, IResultListener<Void> listener) {
+        return submit(new IServiceCall<Void>() {
+            @Override
+            public Void call(IServiceTemplate serviceTemplate) throws RemoteException {
+                serviceTemplate.setProperty(value);
+                onPropertyWritten(PropertyKeys.DEFAULT_KEY);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * retrieve several property values in one transaction without blocking caller thread
+     *
+     * @param keys     property keys
+     * @param listener listener called on main thread with property values (may be null)
+     * @return future of property values
+     */
+    public Future<PropertyBatch> getProperties(final String[] keys, IResultListener<PropertyBatch> listener) {
+        return submit(new IServiceCall<PropertyBatch>() {
+            @Override
+            public PropertyBatch call(IServiceTemplate serviceTemplate) throws RemoteException {
+                return serviceTemplate.getProperties(keys);
+            }
+        }, listener);
+    }
+
+    /**
+     * set a property from a typed value without blocking caller thread : text is marshalled as UTF-8, numbers as primitives
+     *
+     * @param key      property key
+     * @param value    typed value (bytes values are not supported by service property store)
+     * @param listener listener called on main thread when value is set (may be null)
+     * @return future completed when value is set
+     */
+    public Future<Void> setTypedProperty(final String key, final PropertyValue value, IResultListener<Void> listener) {
+        return submit(new IServiceCall<Void>() {
+            @Override
+            public Void call(IServiceTemplate serviceTemplate) throws RemoteException {
+                serviceTemplate.setTypedProperty(key, value);
+                onPropertyWritten(key);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * retrieve a property as a UTF-8 value without blocking caller thread
+     *
+     * @param key      property key
+     * @param listener listener called on main thread with property value (may be null)
+     * @return future of property value (null value if property doesnt exist)
+     */
+    public Future<PropertyValue> getTypedProperty(final String key, IResultListener<PropertyValue> listener) {
+        return submit(new IServiceCall<PropertyValue>() {
+            @Override
+            public PropertyValue call(IServiceTemplate serviceTemplate) throws RemoteException {
+                return serviceTemplate.getTypedProperty(key);
+            }
+        }, listener);
+    }
+
+    /**
+     * set several property values in one transaction without blocking caller thread
+     *
+     * @param properties property values
+     * @param listener   listener called on main thread when values are set (may be null)
+     * @return future completed when values are set
+     */
+    public Future<Void> setProperties(final PropertyBatch properties, IResultListener<Void> listener) {
+        return submit(new IServiceCall<Void>() {
+            @Override
+            public Void call(IServiceTemplate serviceTemplate) throws RemoteException {
+                serviceTemplate.setProperties(properties);
+                onPropertiesWritten(properties);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * set a property value only if its current version is the expected one, without blocking caller thread
+     *
+     * @param key             property key
+     * @param expectedVersion version read with getProperties (0 if property must not exist)
+     * @param value           property value (null to remove property)
+     * @param listener        listener called on main thread with new version or 0 if property has been modified meanwhile (may be null)
+     * @return future of new version
+     */
+    public Future<Long> compareAndSet(final String key, final long expectedVersion, final String value, IResultListener<Long> listener) {
+        return submit(new IServiceCall<Long>() {
+            @Override
+            public Long call(IServiceTemplate serviceTemplate) throws RemoteException {
+                long version = serviceTemplate.compareAndSet(key, expectedVersion, value);
+                if (version > 0)
+                    onPropertyWritten(key);
+                return version;
+            }
+        }, listener);
+    }
+
+    /**
+     * set all properties of a batch atomically if none of them has been modified since versions of the batch, without blocking
+     * caller thread
+     *
+     * @param properties property values with their expected version (batch read with getProperties and modified)
+     * @param listener   listener called on main thread with commit result (may be null)
+     * @return future of commit result : false if a property has been modified meanwhile
+     */
+    public Future<Boolean> commit(final PropertyBatch properties, IResultListener<Boolean> listener) {
+        return submit(new IServiceCall<Boolean>() {
+            @Override
+            public Boolean call(IServiceTemplate serviceTemplate) throws RemoteException {
+                boolean committed = serviceTemplate.commit(properties);
+                if (committed)
+                    onPropertiesWritten(properties);
+                return committed;
+            }
+        }, listener);
+    }
+
+    /**
+     * An asynchronous request waiting for its result callback
+     */
+    private class PendingRequest<T> extends FutureTask<T> {
+
+        private IResultListener<T> listener;
+
+        public PendingRequest(IResultListener<T> listener) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    throw new IllegalStateException("completed by service callback");
+                }
+            });
+            this.listener = listener;
+        }
+
+        @Override
+        protected void done() {
+            if (listener != null && !isCancelled())
+                postResult(this, listener);
+        }
+
+        /**
+         * @param properties properties retrieved by service
+         */
+        protected void onProperties(PropertyBatch properties) {
+            fail(new IllegalStateException("unexpected properties result"));
+        }
+
+        /**
+         * @param result request result
+         */
+        protected void onCompleted(long result) {
+            fail(new IllegalStateException("unexpected result"));
+        }
+
+        protected void complete(T result) {
+            set(result);
+        }
+
+        protected void fail(Exception error) {
+            setException(error);
+        }
+    }
+
+    /**
+     * An asynchronous request sent to service through a oneway call
+     */
+    private interface IRequestCall {
+
+        void send(IServiceTemplate serviceTemplate, long requestId, IRequestCallback callback) throws RemoteException;
+
+    }
+
+    /**
+     * callback receiving results of asynchronous requests (called on a binder thread of this process)
+     */
+    private IRequestCallback.Stub requestCallback = new IRequestCallback.Stub() {
+
+        public void onProperties(long requestId, PropertyBatch properties) {
+            PendingRequest<?> request = pendingRequests.remove(requestId);
+            if (request != null)
+                request.onProperties(properties);
+        }
+
+        public void onCompleted(long requestId, long result) {
+            PendingRequest<?> request = pendingRequests.remove(requestId);
+            if (request != null)
+                request.onCompleted(result);
+        }
+
+        public void onError(long requestId, String message) {
+            PendingRequest<?> request = pendingRequests.remove(requestId);
+            //RemoteException(String) is not available before API 15
+            if (request != null)
+                request.fail(new IllegalStateException(message));
+        }
+    };
+
+    /**
+     * send an asynchronous request. Neither a client thread nor a service binder thread waits while request is processed : service
+     * queues it and sends its result through a oneway callback
+     *
+     * @param requestCall oneway call sending request
+     * @param request     pending request completed by result callback
+     * @return future of request result
+     */
+    private <T> Future<T> sendRequest(final IRequestCall requestCall, final PendingRequest<T> request) {
+
+        final long requestId = requestIds.incrementAndGet();
+
+        pendingRequests.put(requestId, request);
+
+        submit(new IServiceCall<Void>() {
+            @Override
+            public Void call(IServiceTemplate serviceTemplate) throws RemoteException {
+                requestCall.send(serviceTemplate, requestId, requestCallback);
+                return null;
+            }
+        }, new IResultListener<Void>() {
+            @Override
+            public void onResult(Void result) {
+            }
+
+            @Override
+            public void onError(Exception error) {
+                if (pendingRequests.remove(requestId) != null)
+                    request.fail(error);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * fail all requests waiting for a result callback (service died so callbacks will never come)
+     *
+     * @param message error message
+     */
+    private void failPendingRequests(String message) {
+        Log.i(TAG, "failing pending requests : " + message);
+        for (Long requestId : pendingRequests.keySet()) {
+            PendingRequest<?> request = pendingRequests.remove(requestId);
+            if (request != null)
+                request.fail(new DeadObjectException());
+        }
+    }
+
+    /**
+     * set several property values without holding a binder thread while service writes them
+     *
+     * @param properties property values
+     * @param listener   listener called on main thread when values are set (may be null)
+     * @return future completed when values are set
+     */
+    public Future<Void> setPropertiesAsync(final PropertyBatch properties, IResultListener<Void> listener) {
+        return sendRequest(new IRequestCall() {
+            @Override
+            public void send(IServiceTemplate serviceTemplate, long requestId, IRequestCallback callback) throws RemoteException {
+                serviceTemplate.setPropertiesAsync(requestId, properties, callback);
+            }
+        }, new PendingRequest<Void>(listener) {
+            @Override
+            protected void onCompleted(long result) {
+                onPropertiesWritten(properties);
+                complete(null);
+            }
+        });
+    }
+
+    /**
+     * retrieve several property values without holding a binder thread while service reads them
+     *
+     * @param keys     property keys
+     * @param listener listener called on main thread with property values (may be null)
+     * @return future of property values
+     */
+    public Future<PropertyBatch> getPropertiesAsync(final String[] keys, IResultListener<PropertyBatch> listener) {
+        return sendRequest(new IRequestCall() {
+            @Override
+            public void send(IServiceTemplate serviceTemplate, long requestId, IRequestCallback callback) throws RemoteException {
+                serviceTemplate.getPropertiesAsync(requestId, keys, callback);
+            }
+        }, new PendingRequest<PropertyBatch>(listener) {
+            @Override
+            protected void onProperties(PropertyBatch properties) {
+                complete(properties);
+            }
+        });
+    }
+
+    /**
+     * set a property value only if its current version is the expected one, without holding a binder thread
+     *
+     * @param key             property key
+     * @param expectedVersion version read with getProperties (0 if property must not exist)
+     * @param value           property value (null to remove property)
+     * @param listener        listener called on main thread with new version or 0 if property has been modified meanwhile (may be null)
+     * @return future of new version
+     */
+    public Future<Long> compareAndSetAsync(final String key, final long expectedVersion, final String value, IResultListener<Long> listener) {
+        return sendRequest(new IRequestCall() {
+            @Override
+            public void send(IServiceTemplate serviceTemplate, long requestId, IRequestCallback callback) throws RemoteException {
+                serviceTemplate.compareAndSetAsync(requestId, key, expectedVersion, value, callback);
+            }
+        }, new PendingRequest<Long>(listener) {
+            @Override
+            protected void onCompleted(long result) {
+                if (result > 0)
+                    onPropertyWritten(key);
+                complete(result);
+            }
+        });
+    }
+
+    /**
+     * set all properties of a batch atomically if none of them has been modified since versions of the batch, without holding a
+     * binder thread
+     *
+     * @param properties property values with their expected version
+     * @param listener   listener called on main thread with commit result (may be null)
+     * @return future of commit result : false if a property has been modified meanwhile
+     */
+    public Future<Boolean> commitAsync(final PropertyBatch properties, IResultListener<Boolean> listener) {
+        return sendRequest(new IRequestCall() {
+            @Override
+            public void send(IServiceTemplate serviceTemplate, long requestId, IRequestCallback callback) throws RemoteException {
+                serviceTemplate.commitAsync(requestId, properties, callback);
+            }
+        }, new PendingRequest<Boolean>(listener) {
+            @Override
+            protected void onCompleted(long result) {
+                if (result != 0)
+                    onPropertiesWritten(properties);
+                complete(result != 0);
+            }
+        });
+    }
+
+    /**
+     * open producer side of a named binary stream without blocking caller thread
+     *
+     * @param streamName stream name
+     * @param listener   listener called on main thread with frame writer (null if stream already has a producer)
+     * @return future of frame writer. Frames must be written out of main thread since writes block while readers are behind
+     */
+    public Future<FrameWriter> openStreamWriter(final String streamName, IResultListener<FrameWriter> listener) {
+        return submit(new IServiceCall<FrameWriter>() {
+            @Override
+            public FrameWriter call(IServiceTemplate serviceTemplate) throws RemoteException {
+                ParcelFileDescriptor descriptor = serviceTemplate.openStreamWriter(streamName);
+                return (descriptor != null) ? new FrameWriter(descriptor) : null;
+            }
+        }, listener);
+    }
+
+    /**
+     * open consumer side of a named binary stream without blocking caller thread
+     *
+     * @param streamName stream name
+     * @param listener   listener called on main thread with frame reader (may be null)
+     * @return future of frame reader. Frames must be read out of main thread
+     */
+    public Future<FrameReader> openStreamReader(final String streamName, IResultListener<FrameReader> listener) {
+        return submit(new IServiceCall<FrameReader>() {
+            @Override
+            public FrameReader call(IServiceTemplate serviceTemplate) throws RemoteException {
+                ParcelFileDescriptor descriptor = serviceTemplate.openStreamReader(streamName);
+                return (descriptor != null) ? new FrameReader(descriptor) : null;
+            }
+        }, listener);
+    }
+
+    /**
+     * close a named binary stream without blocking caller thread
+     *
+     * @param streamName stream name
+     * @param listener   listener called on main thread when stream is closed (may be null)
+     * @return future completed when stream is closed
+     */
+    public Future<Void> closeStream(final String streamName, IResultListener<Void> listener) {
+        return submit(new IServiceCall<Void>() {
+            @Override
+            public Void call(IServiceTemplate serviceTemplate) throws RemoteException {
+                serviceTemplate.closeStream(streamName);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * retrieve service metrics without blocking caller thread
+     *
+     * @param listener listener called on main thread with metrics bundle (may be null)
+     * @return future of metrics bundle (see MetricsKeys)
+     */
+    public Future<Bundle> getMetrics(IResultListener<Bundle> listener) {
+        return submit(new IServiceCall<Bundle>() {
+            @Override
+            public Bundle call(IServiceTemplate serviceTemplate) throws RemoteException {
+                return serviceTemplate.getMetrics();
+            }
+        }, listener);
+    }
+
+    /**
+     * register a property listener on service without blocking caller thread. Registration is queued until service is connected
+     *
+     * @param propertyListener listener notified by service
+     * @param options          delivery options (may be null for default delivery)
+     * @param listener         listener called on main thread with listener id (may be null)
+     * @return future of listener id, used to remove listener
+     */
+    public Future<String> registerListener(final IPropertyListener propertyListener, final SubscriptionOptions options, IResultListener<String> listener) {
+        return submit(new IServiceCall<String>() {
+            @Override
+            public String call(IServiceTemplate serviceTemplate) throws RemoteException {
+                if (options == null)
+                    return serviceTemplate.registerListener(propertyListener);
+                return serviceTemplate.registerListenerWithOptions(propertyListener, options);
+            }
+        }, listener);
+    }
+
+    /**
+     * remove a property listener registered with registerListener without blocking caller thread
+     *
+     * @param listenerId id returned by registerListener
+     * @param listener   listener called on main thread when listener is removed (may be null)
+     * @return future completed when listener is removed
+     */
+    public Future<Void> removeListener(final String listenerId, IResultListener<Void> listener) {
+        return submit(new IServiceCall<Void>() {
+            @Override
+            public Void call(IServiceTemplate serviceTemplate) throws RemoteException {
+                serviceTemplate.removeListener(listenerId);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * set delivery options used when registering property listener on next service connection
+     *
+     * @param subscriptionOptions delivery options (latest value only, max rate, debounce). Deltas option is always enabled
+     */
+    public void setSubscriptionOptions(SubscriptionOptions subscriptionOptions) {
+        this.subscriptionOptions = subscriptionOptions;
+    }
+
+    /**
+     * add a listener between an activity and singleton, notified on main thread. Listener is weakly referenced : caller must keep
+     * a reference on it as long as it wants to be notified
+     *
+     * @param singletonListener
+     */
+    public void addListener(ISingletonListener singletonListener) {
+        eventBus.addListener(singletonListener, Looper.getMainLooper());
+    }
+
+    /**
+     * add a listener between a component and singleton, notified on a specific executor. Listener is weakly referenced : caller
+     * must keep a reference on it as long as it wants to be notified
+     *
+     * @param singletonListener
+     * @param executor          executor notifications are delivered on
+     */
+    public void addListener(ISingletonListener singletonListener, Executor executor) {
+        eventBus.addListener(singletonListener, executor);
+    }
+
+    /**
+     * remove a listener between an activity and singleton
      *
      * @param singletonListener
      */
-    public void registerListener(ISingletonListener singletonListener) {
-        this.singletonListener = singletonListener;
+    public void removeListener(ISingletonListener singletonListener) {
+        eventBus.removeListener(singletonListener);
     }
 }
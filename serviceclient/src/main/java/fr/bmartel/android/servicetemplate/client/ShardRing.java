@@ -0,0 +1,114 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.client;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring mapping a routing key to one of N service shards
+ * <p/>
+ * Each shard owns several points of the ring so that load is evenly spread. When a shard is added, only keys falling on its
+ * points move to it, other clients keep their shard
+ *
+ * @author Bertrand Martel
+ */
+public class ShardRing {
+
+    /**
+     * number of ring points per shard
+     */
+    private final static int VIRTUAL_NODES = 128;
+
+    /**
+     * sorted ring points and owner shard of each point
+     */
+    private final int[] points;
+
+    private final int[] shards;
+
+    /**
+     * @param shardCount number of shards
+     */
+    public ShardRing(int shardCount) {
+
+        if (shardCount < 1)
+            throw new IllegalArgumentException("shard count must be at least 1 : " + shardCount);
+
+        long[] ring = new long[shardCount * VIRTUAL_NODES];
+
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                //point hash in high bits, shard in low bits to sort both together
+                ring[shard * VIRTUAL_NODES + node] = ((long) hash("shard-" + shard + "#" + node) << 32) | shard;
+            }
+        }
+        Arrays.sort(ring);
+
+        points = new int[ring.length];
+        shards = new int[ring.length];
+
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = (int) (ring[i] >>> 32);
+            shards[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * get shard owning a key : first ring point at or after key hash
+     *
+     * @param key routing key
+     * @return shard index
+     */
+    public int getShard(String key) {
+
+        int index = Arrays.binarySearch(points, hash(key));
+
+        if (index < 0)
+            index = -index - 1;
+
+        return shards[index % points.length];
+    }
+
+    /**
+     * FNV-1a hash with a final avalanche, non negative
+     *
+     * @param key key to hash
+     * @return 31 bit hash
+     */
+    private static int hash(String key) {
+
+        int hash = 0x811c9dc5;
+
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+
+        return hash & 0x7FFFFFFF;
+    }
+}
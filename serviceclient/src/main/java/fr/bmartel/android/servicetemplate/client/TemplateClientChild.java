@@ -41,6 +41,19 @@ public class TemplateClientChild extends Activity {
 
     private boolean gotoRoot = false;
 
+    /**
+     * listener notified on main thread by singleton (kept here since singleton only holds a weak reference on it)
+     */
+    private ISingletonListener propertyListener = new ISingletonListener() {
+        @Override
+        public void onPropertyValueChanged(String value) {
+
+            TextView text = (TextView) findViewById(R.id.propertyValues);
+            if (text != null)
+                text.setText(text.getText() + "\n" + value);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -74,21 +87,7 @@ public class TemplateClientChild extends Activity {
         Button button2ndLevel = (Button) findViewById(R.id.button2ndlevel);
         button2ndLevel.setEnabled(true);
 
-        ServiceSingleton.getInstance().registerListener(new ISingletonListener() {
-            @Override
-            public void onPropertyValueChanged(final String value) {
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-
-                        TextView text = (TextView) findViewById(R.id.propertyValues);
-                        if (text != null)
-                            text.setText(text.getText() + "\n" + value);
-                    }
-                });
-            }
-        });
+        ServiceSingleton.getInstance().addListener(propertyListener);
     }
 
     @Override
@@ -107,6 +106,7 @@ public class TemplateClientChild extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        ServiceSingleton.getInstance().removeListener(propertyListener);
         if (!gotoRoot)
             ServiceSingleton.getInstance().unbindService();
     }
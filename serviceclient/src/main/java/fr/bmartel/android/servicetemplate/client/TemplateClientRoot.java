@@ -37,6 +37,19 @@ public class TemplateClientRoot extends Activity {
 
     private boolean goTo2ndLevel = false;
 
+    /**
+     * listener notified on main thread by singleton (kept here since singleton only holds a weak reference on it)
+     */
+    private ISingletonListener propertyListener = new ISingletonListener() {
+        @Override
+        public void onPropertyValueChanged(String value) {
+
+            final TextView text = (TextView) findViewById(R.id.propertyValues);
+            if (text != null)
+                text.setText(text.getText() + "\n" + value);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -75,21 +88,7 @@ public class TemplateClientRoot extends Activity {
         Button button2ndLevel = (Button) findViewById(R.id.button2ndlevel);
         button2ndLevel.setEnabled(true);
 
-        ServiceSingleton.getInstance().registerListener(new ISingletonListener() {
-            @Override
-            public void onPropertyValueChanged(final String value) {
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-
-                        final TextView text = (TextView) findViewById(R.id.propertyValues);
-                        if (text != null)
-                            text.setText(text.getText() + "\n" + value);
-                    }
-                });
-            }
-        });
+        ServiceSingleton.getInstance().addListener(propertyListener);
     }
 
     @Override
@@ -102,6 +101,7 @@ public class TemplateClientRoot extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        ServiceSingleton.getInstance().removeListener(propertyListener);
         if (!goTo2ndLevel)
             ServiceSingleton.getInstance().unbindService();
     }
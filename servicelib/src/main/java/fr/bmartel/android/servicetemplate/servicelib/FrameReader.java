@@ -0,0 +1,100 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read binary records written by {@link FrameWriter} from a stream pipe
+ *
+ * @author Bertrand Martel
+ */
+public class FrameReader implements Closeable {
+
+    private DataInputStream input = null;
+
+    /**
+     * @param input stream to read frames from
+     */
+    public FrameReader(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+    }
+
+    /**
+     * @param descriptor read side of a stream pipe (closed with this reader)
+     */
+    public FrameReader(ParcelFileDescriptor descriptor) {
+        this(new ParcelFileDescriptor.AutoCloseInputStream(descriptor));
+    }
+
+    /**
+     * read next frame, blocking until it is available
+     *
+     * @param buffer buffer receiving payload (FrameWriter.MAX_FRAME_SIZE bytes to read any frame)
+     * @return payload length or -1 at end of stream
+     * @throws IOException if frame is malformed or larger than buffer
+     */
+    public int readFrame(byte[] buffer) throws IOException {
+
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+
+        if (length < 0 || length > FrameWriter.MAX_FRAME_SIZE)
+            throw new IOException("malformed frame length : " + length);
+
+        if (length > buffer.length)
+            throw new IOException("frame larger than buffer : " + length + " > " + buffer.length);
+
+        input.readFully(buffer, 0, length);
+
+        return length;
+    }
+
+    /**
+     * @return number of bytes that can be read without blocking
+     * @throws IOException
+     */
+    public int available() throws IOException {
+        return input.available();
+    }
+
+    /**
+     * close pipe : writer side gets an error on next write
+     */
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
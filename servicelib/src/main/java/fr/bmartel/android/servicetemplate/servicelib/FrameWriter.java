@@ -0,0 +1,101 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write binary records on a stream pipe : each frame is a 4 bytes big endian length followed by payload
+ * <p/>
+ * A write blocks while the pipe is full : a producer is paced by the slowest reader of the stream
+ *
+ * @author Bertrand Martel
+ */
+public class FrameWriter implements Closeable {
+
+    /**
+     * max payload size of a frame
+     */
+    public final static int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private DataOutputStream output = null;
+
+    /**
+     * @param output stream to write frames to
+     */
+    public FrameWriter(OutputStream output) {
+        this.output = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+    }
+
+    /**
+     * @param descriptor write side of a stream pipe (closed with this writer)
+     */
+    public FrameWriter(ParcelFileDescriptor descriptor) {
+        this(new ParcelFileDescriptor.AutoCloseOutputStream(descriptor));
+    }
+
+    /**
+     * write a frame (buffered until flush or until buffer is full)
+     *
+     * @param data   buffer
+     * @param offset payload offset in buffer
+     * @param length payload length
+     * @throws IOException if reader side has been closed
+     */
+    public void writeFrame(byte[] data, int offset, int length) throws IOException {
+
+        if (length > MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("frame too large : " + length + " > " + MAX_FRAME_SIZE);
+
+        output.writeInt(length);
+        output.write(data, offset, length);
+    }
+
+    public void writeFrame(byte[] data) throws IOException {
+        writeFrame(data, 0, data.length);
+    }
+
+    /**
+     * send buffered frames
+     *
+     * @throws IOException if reader side has been closed
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * flush buffered frames and close pipe : reader receives end of stream
+     */
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+/**
+ * Keys of metrics bundle returned by service
+ * <p/>
+ * Latencies are nested bundles holding count, mean and percentiles in nanoseconds
+ *
+ * @author Bertrand Martel
+ */
+public class MetricsKeys {
+
+    /**
+     * time spent dispatching a change to all matching listener channels
+     */
+    public final static String DISPATCH_LATENCY = "dispatchLatency";
+
+    /**
+     * time an event waits in a listener channel before being sent (interactive listeners)
+     */
+    public final static String QUEUE_LATENCY = "queueLatency";
+
+    /**
+     * time an event waits in a listener channel before being sent (bulk listeners)
+     */
+    public final static String BULK_QUEUE_LATENCY = "bulkQueueLatency";
+
+    /**
+     * number of events dropped because they missed their deadline
+     */
+    public final static String DEADLINE_DROPS = "deadlineDrops";
+
+    /**
+     * duration of a listener callback (all clients)
+     */
+    public final static String CALLBACK_LATENCY = "callbackLatency";
+
+    /**
+     * time a binder thread spends in a transaction of service binder
+     */
+    public final static String BINDER_CALL_LATENCY = "binderCallLatency";
+
+    /**
+     * number of binder threads currently in a transaction of service binder
+     */
+    public final static String ACTIVE_BINDER_CALLS = "activeBinderCalls";
+
+    /**
+     * highest number of binder threads simultaneously in a transaction of service binder
+     */
+    public final static String PEAK_BINDER_CALLS = "peakBinderCalls";
+
+    /**
+     * time an asynchronous request waits for a pipeline worker
+     */
+    public final static String REQUEST_WAIT_LATENCY = "requestWaitLatency";
+
+    /**
+     * number of asynchronous requests waiting for a pipeline worker
+     */
+    public final static String PENDING_REQUESTS = "pendingRequests";
+
+    /**
+     * number of asynchronous requests rejected because pipeline queue was full
+     */
+    public final static String REJECTED_REQUESTS = "rejectedRequests";
+
+    public final static String REMOTE_EXCEPTIONS = "remoteExceptions";
+
+    public final static String REAPED_LISTENERS = "reapedListeners";
+
+    public final static String REAPED_CLIENTS = "reapedClients";
+
+    /**
+     * number of listeners removed because their client lagged more than max lag (disconnect shed policy)
+     */
+    public final static String SHED_LISTENERS = "shedListeners";
+
+    public final static String LISTENER_COUNT = "listenerCount";
+
+    public final static String CLIENT_COUNT = "clientCount";
+
+    /**
+     * number of listener channel drains waiting for a dispatch worker
+     */
+    public final static String PENDING_DRAINS = "pendingDrains";
+
+    /**
+     * bundle of per client bundles, keyed by PID
+     */
+    public final static String CLIENTS = "clients";
+
+    /**
+     * number of values waiting in listener channels of a client
+     */
+    public final static String QUEUE_DEPTH = "queueDepth";
+
+    /**
+     * number of values dropped by listener channels of a client
+     */
+    public final static String DROPPED = "dropped";
+
+    /**
+     * number of values listeners of a client lag behind (pending values and callbacks not acknowledged by a credit grant)
+     */
+    public final static String LAG = "lag";
+
+    /**
+     * credits left to listeners of a client registered with flow control
+     */
+    public final static String CREDITS = "credits";
+
+    /**
+     * number of values dropped because a client was lagging more than max lag
+     */
+    public final static String SHED = "shed";
+
+    public final static String COUNT = "count";
+
+    public final static String MEAN = "mean";
+
+    public final static String P50 = "p50";
+
+    public final static String P90 = "p90";
+
+    public final static String P99 = "p99";
+
+    public final static String MAX = "max";
+}
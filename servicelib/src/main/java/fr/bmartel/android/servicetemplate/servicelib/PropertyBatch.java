@@ -0,0 +1,124 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A batch of key / value properties transferred in a single transaction. Keys, values and versions are marshalled as flat arrays
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyBatch implements Parcelable {
+
+    private String[] keys;
+
+    private String[] values;
+
+    private long[] versions;
+
+    public PropertyBatch(String[] keys, String[] values) {
+        this(keys, values, new long[keys.length]);
+    }
+
+    public PropertyBatch(String[] keys, String[] values, long[] versions) {
+        validate(keys, values, versions);
+        this.keys = keys;
+        this.values = values;
+        this.versions = versions;
+    }
+
+    /**
+     * @param in parcel written by a client : a malformed batch is rejected before it reaches property store
+     */
+    protected PropertyBatch(Parcel in) {
+        this(in.createStringArray(), in.createStringArray(), in.createLongArray());
+    }
+
+    /**
+     * check that arrays are present, have the same length and that each entry has a key (a null value is a removal)
+     */
+    private static void validate(String[] keys, String[] values, long[] versions) {
+
+        if (keys == null || values == null || versions == null)
+            throw new IllegalArgumentException("keys, values and versions are required");
+
+        if (keys.length != values.length || keys.length != versions.length)
+            throw new IllegalArgumentException("keys, values and versions length differ : " + keys.length + " / " + values.length + " / " + versions.length);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null)
+                throw new IllegalArgumentException("null key at index " + i);
+        }
+    }
+
+    public static final Creator<PropertyBatch> CREATOR = new Creator<PropertyBatch>() {
+        @Override
+        public PropertyBatch createFromParcel(Parcel in) {
+            return new PropertyBatch(in);
+        }
+
+        @Override
+        public PropertyBatch[] newArray(int size) {
+            return new PropertyBatch[size];
+        }
+    };
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * @param index entry index
+     * @return property value or null if property doesnt exist
+     */
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param index entry index
+     * @return version of property value (0 if unknown or property doesnt exist)
+     */
+    public long getVersion(int index) {
+        return versions[index];
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeStringArray(keys);
+        dest.writeStringArray(values);
+        dest.writeLongArray(versions);
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Compact change between two versions of a property value : the range [offset, offset + removedLength[ of base value is
+ * replaced by inserted string
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyDelta implements Parcelable {
+
+    private long baseVersion;
+
+    private long version;
+
+    private int offset;
+
+    private int removedLength;
+
+    private String inserted;
+
+    public PropertyDelta(long baseVersion, long version, int offset, int removedLength, String inserted) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.inserted = inserted;
+    }
+
+    protected PropertyDelta(Parcel in) {
+        baseVersion = in.readLong();
+        version = in.readLong();
+        offset = in.readInt();
+        removedLength = in.readInt();
+        inserted = in.readString();
+    }
+
+    public static final Creator<PropertyDelta> CREATOR = new Creator<PropertyDelta>() {
+        @Override
+        public PropertyDelta createFromParcel(Parcel in) {
+            return new PropertyDelta(in);
+        }
+
+        @Override
+        public PropertyDelta[] newArray(int size) {
+            return new PropertyDelta[size];
+        }
+    };
+
+    /**
+     * compute delta between two values : common prefix and suffix are not transmitted
+     *
+     * @param base        base value
+     * @param baseVersion version of base value
+     * @param value       new value
+     * @param version     version of new value
+     * @return delta
+     */
+    public static PropertyDelta compute(String base, long baseVersion, String value, long version) {
+
+        int maxPrefix = Math.min(base.length(), value.length());
+
+        int prefix = 0;
+        while (prefix < maxPrefix && base.charAt(prefix) == value.charAt(prefix)) {
+            prefix++;
+        }
+
+        int maxSuffix = maxPrefix - prefix;
+
+        int suffix = 0;
+        while (suffix < maxSuffix && base.charAt(base.length() - 1 - suffix) == value.charAt(value.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        return new PropertyDelta(baseVersion, version, prefix, base.length() - prefix - suffix, value.substring(prefix, value.length() - suffix));
+    }
+
+    /**
+     * apply delta on base value
+     *
+     * @param base value at version {@link #getBaseVersion()}
+     * @return value at version {@link #getVersion()}
+     */
+    public String apply(String base) {
+        StringBuilder builder = new StringBuilder(base.length() - removedLength + inserted.length());
+        builder.append(base, 0, offset);
+        builder.append(inserted);
+        builder.append(base, offset + removedLength, base.length());
+        return builder.toString();
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getRemovedLength() {
+        return removedLength;
+    }
+
+    public String getInserted() {
+        return inserted;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(baseVersion);
+        dest.writeLong(version);
+        dest.writeInt(offset);
+        dest.writeInt(removedLength);
+        dest.writeString(inserted);
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Typed property value with a compact binary encoding : numbers are marshalled as primitives, text as UTF-8 bytes instead of
+ * UTF-16 chars
+ * <p/>
+ * A value is mutable so that it can be reused : setters copy data in an internal buffer which only grows, and getters decode into
+ * buffers given by caller
+ *
+ * @author Bertrand Martel
+ */
+public class PropertyValue implements Parcelable {
+
+    public final static int TYPE_NULL = 0;
+
+    public final static int TYPE_INT = 1;
+
+    public final static int TYPE_LONG = 2;
+
+    public final static int TYPE_DOUBLE = 3;
+
+    public final static int TYPE_BYTES = 4;
+
+    public final static int TYPE_UTF8 = 5;
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private int type = TYPE_NULL;
+
+    /**
+     * int and long value, raw bits of double value
+     */
+    private long bits = 0;
+
+    /**
+     * bytes or UTF-8 text (valid up to length)
+     */
+    private byte[] buffer = EMPTY;
+
+    private int length = 0;
+
+    public PropertyValue() {
+    }
+
+    protected PropertyValue(Parcel in) {
+
+        type = in.readInt();
+
+        switch (type) {
+            case TYPE_INT:
+                bits = in.readInt();
+                break;
+            case TYPE_LONG:
+                bits = in.readLong();
+                break;
+            case TYPE_DOUBLE:
+                bits = Double.doubleToRawLongBits(in.readDouble());
+                break;
+            case TYPE_BYTES:
+            case TYPE_UTF8:
+                byte[] bytes = in.createByteArray();
+                //a null array can only come from a malformed parcel
+                if (bytes == null) {
+                    type = TYPE_NULL;
+                    break;
+                }
+                buffer = bytes;
+                length = buffer.length;
+                break;
+            default:
+                type = TYPE_NULL;
+                break;
+        }
+    }
+
+    public static final Creator<PropertyValue> CREATOR = new Creator<PropertyValue>() {
+        @Override
+        public PropertyValue createFromParcel(Parcel in) {
+            return new PropertyValue(in);
+        }
+
+        @Override
+        public PropertyValue[] newArray(int size) {
+            return new PropertyValue[size];
+        }
+    };
+
+    public PropertyValue setNull() {
+        type = TYPE_NULL;
+        length = 0;
+        return this;
+    }
+
+    public PropertyValue setInt(int value) {
+        type = TYPE_INT;
+        bits = value;
+        length = 0;
+        return this;
+    }
+
+    public PropertyValue setLong(long value) {
+        type = TYPE_LONG;
+        bits = value;
+        length = 0;
+        return this;
+    }
+
+    public PropertyValue setDouble(double value) {
+        type = TYPE_DOUBLE;
+        bits = Double.doubleToRawLongBits(value);
+        length = 0;
+        return this;
+    }
+
+    /**
+     * @param bytes  source bytes (copied)
+     * @param offset offset of first byte
+     * @param count  number of bytes
+     */
+    public PropertyValue setBytes(byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, buffer, 0, count);
+        type = TYPE_BYTES;
+        length = count;
+        return this;
+    }
+
+    /**
+     * encode text in UTF-8 (null text sets a null value). An unpaired surrogate is encoded as '?'
+     *
+     * @param text text to be encoded
+     */
+    public PropertyValue setUtf8(CharSequence text) {
+
+        if (text == null)
+            return setNull();
+
+        int textLength = text.length();
+
+        //3 bytes per char at most (surrogate pairs take 4 bytes for 2 chars)
+        ensureCapacity(textLength * 3);
+
+        int position = 0;
+
+        for (int i = 0; i < textLength; i++) {
+
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < textLength && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c >= 0xD800 && c <= 0xDFFF) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        type = TYPE_UTF8;
+        length = position;
+        return this;
+    }
+
+    /**
+     * copy another value (buffer of this value is reused)
+     *
+     * @param value value to be copied
+     */
+    public PropertyValue set(PropertyValue value) {
+        ensureCapacity(value.length);
+        System.arraycopy(value.buffer, 0, buffer, 0, value.length);
+        type = value.type;
+        bits = value.bits;
+        length = value.length;
+        return this;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity)
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isNull() {
+        return type == TYPE_NULL;
+    }
+
+    /**
+     * @return int value (long and double values are converted, UTF-8 value is parsed)
+     */
+    public int getInt() {
+        return (int) getLong();
+    }
+
+    /**
+     * @return long value (int and double values are converted, UTF-8 decimal value is parsed without allocation)
+     * @throws NumberFormatException if UTF-8 value is not a decimal number
+     */
+    public long getLong() {
+
+        switch (type) {
+            case TYPE_DOUBLE:
+                return (long) Double.longBitsToDouble(bits);
+            case TYPE_UTF8:
+                return parseLong();
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * @return double value (int and long values are converted, UTF-8 value is parsed)
+     * @throws NumberFormatException if UTF-8 value is not a number
+     */
+    public double getDouble() {
+
+        switch (type) {
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case TYPE_UTF8:
+                return Double.parseDouble(toString());
+            default:
+                return bits;
+        }
+    }
+
+    private long parseLong() {
+
+        int position = 0;
+        boolean negative = false;
+
+        if (length > 0 && (buffer[0] == '-' || buffer[0] == '+')) {
+            negative = buffer[0] == '-';
+            position++;
+        }
+
+        if (position == length)
+            throw new NumberFormatException("not a decimal number");
+
+        long result = 0;
+
+        for (; position < length; position++) {
+
+            int digit = buffer[position] - '0';
+
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10)
+                throw new NumberFormatException("not a decimal number");
+
+            //accumulated negatively so that Long.MIN_VALUE is parsed
+            result = result * 10 - digit;
+        }
+
+        if (!negative && result == Long.MIN_VALUE)
+            throw new NumberFormatException("not a decimal number");
+
+        return negative ? result : -result;
+    }
+
+    /**
+     * @return number of bytes of a bytes or UTF-8 value
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return internal buffer of a bytes or UTF-8 value, valid up to {@link #getLength()} and until value is modified
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * copy bytes of a bytes or UTF-8 value
+     *
+     * @param dest   destination buffer
+     * @param offset offset in destination buffer
+     * @return number of bytes copied
+     */
+    public int getBytes(byte[] dest, int offset) {
+        System.arraycopy(buffer, 0, dest, offset, length);
+        return length;
+    }
+
+    /**
+     * decode a UTF-8 value and append it to a reusable builder. Malformed sequences are decoded as U+FFFD
+     *
+     * @param dest builder the text is appended to
+     * @return dest
+     */
+    public StringBuilder getUtf8(StringBuilder dest) {
+
+        int position = 0;
+
+        while (position < length) {
+
+            int b = buffer[position++] & 0xFF;
+
+            if (b < 0x80) {
+                dest.append((char) b);
+                continue;
+            }
+
+            int extra;
+            int codePoint;
+
+            if (b >= 0xF0 && b < 0xF8) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else if (b >= 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if (b >= 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else {
+                dest.append('\uFFFD');
+                continue;
+            }
+
+            if (b >= 0xF8 || position + extra > length) {
+                dest.append('\uFFFD');
+                continue;
+            }
+
+            boolean valid = true;
+            for (int i = 0; i < extra; i++) {
+                int next = buffer[position] & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                position++;
+            }
+
+            if (valid && Character.isValidCodePoint(codePoint))
+                dest.appendCodePoint(codePoint);
+            else
+                dest.append('\uFFFD');
+        }
+        return dest;
+    }
+
+    /**
+     * @return value as text (allocates a string, use {@link #getUtf8(StringBuilder)} to decode in a reusable builder)
+     */
+    @Override
+    public String toString() {
+        switch (type) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return String.valueOf(bits);
+            case TYPE_DOUBLE:
+                return String.valueOf(getDouble());
+            case TYPE_UTF8:
+                return getUtf8(new StringBuilder(length)).toString();
+            case TYPE_BYTES:
+                return "bytes[" + length + "]";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+
+        dest.writeInt(type);
+
+        switch (type) {
+            case TYPE_INT:
+                dest.writeInt((int) bits);
+                break;
+            case TYPE_LONG:
+                dest.writeLong(bits);
+                break;
+            case TYPE_DOUBLE:
+                dest.writeDouble(Double.longBitsToDouble(bits));
+                break;
+            case TYPE_BYTES:
+            case TYPE_UTF8:
+                dest.writeByteArray(buffer, 0, length);
+                break;
+        }
+    }
+}
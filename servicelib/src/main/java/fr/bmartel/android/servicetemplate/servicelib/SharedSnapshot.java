@@ -0,0 +1,198 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Shared memory region used by service to publish large property values. Layout :
+ * <p/>
+ * <pre>
+ * | sequence (long) | length (int) | checksum (int) | version (long) | payload (UTF-8) |
+ * </pre>
+ * <p/>
+ * Header fields are in native byte order. The sequence is odd while service is writing and even when the snapshot is stable.
+ * Version is the property version published. A reader copies the payload and retries if the sequence has changed meanwhile.
+ * <p/>
+ * Mapped buffer accesses are plain memory accesses with no ordering guarantee between processes, so the sequence alone cant
+ * prove a copy is complete : a copy is only accepted if its CRC32 (payload, length and version) matches the checksum field.
+ *
+ * @author Bertrand Martel
+ */
+public class SharedSnapshot {
+
+    public final static int SEQUENCE_OFFSET = 0;
+
+    public final static int LENGTH_OFFSET = 8;
+
+    public final static int CHECKSUM_OFFSET = 12;
+
+    public final static int VERSION_OFFSET = 16;
+
+    public final static int HEADER_SIZE = 24;
+
+    public final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * max number of attempts to read a stable snapshot
+     */
+    private final static int MAX_READ_ATTEMPTS = 100;
+
+    private MappedByteBuffer buffer = null;
+
+    private ParcelFileDescriptor descriptor = null;
+
+    private int lastLength = 0;
+
+    private long lastVersion = 0;
+
+    /**
+     * map snapshot region read-only
+     *
+     * @param descriptor descriptor returned by IServiceTemplate.getSnapshotDescriptor()
+     * @throws IOException
+     */
+    public SharedSnapshot(ParcelFileDescriptor descriptor) throws IOException {
+
+        this.descriptor = descriptor;
+
+        FileInputStream inputStream = new FileInputStream(descriptor.getFileDescriptor());
+        FileChannel channel = inputStream.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return property version of last published snapshot
+     */
+    public long getVersion() {
+        return buffer.getLong(VERSION_OFFSET);
+    }
+
+    /**
+     * copy current snapshot in a buffer
+     *
+     * @param dest buffer to reuse (may be null or too small, in that case a new buffer is allocated)
+     * @return buffer containing the payload in its first {@link #getLength()} bytes or null if no stable snapshot could be read
+     */
+    public byte[] read(byte[] dest) {
+
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+
+            long sequence = buffer.getLong(SEQUENCE_OFFSET);
+
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            int length = buffer.getInt(LENGTH_OFFSET);
+            int checksum = buffer.getInt(CHECKSUM_OFFSET);
+            long version = buffer.getLong(VERSION_OFFSET);
+
+            if (length < 0 || length > buffer.capacity() - HEADER_SIZE)
+                continue;
+
+            if (dest == null || dest.length < length)
+                dest = new byte[length];
+
+            ByteBuffer view = buffer.duplicate();
+            view.position(HEADER_SIZE);
+            view.get(dest, 0, length);
+
+            //a torn copy (payload written while it was read) doesnt match checksum
+            if (buffer.getLong(SEQUENCE_OFFSET) == sequence && checksum(dest, length, version) == checksum) {
+                lastLength = length;
+                lastVersion = version;
+                return dest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * compute checksum of a snapshot
+     *
+     * @param payload payload buffer
+     * @param length  payload length
+     * @param version property version
+     * @return CRC32 of payload, length and version
+     */
+    public static int checksum(byte[] payload, int length, long version) {
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+
+        for (int shift = 0; shift < 32; shift += 8) {
+            crc.update(length >>> shift);
+        }
+        for (int shift = 0; shift < 64; shift += 8) {
+            crc.update((int) (version >>> shift));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return length of last payload read with {@link #read(byte[])}
+     */
+    public int getLength() {
+        return lastLength;
+    }
+
+    /**
+     * @return property version of last payload read with {@link #read(byte[])}
+     */
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * read current snapshot as a string
+     *
+     * @return snapshot value or null if no stable snapshot could be read
+     */
+    public String readString() {
+        byte[] data = read(null);
+        if (data == null)
+            return null;
+        return new String(data, 0, lastLength, UTF8);
+    }
+
+    public void close() {
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.android.servicetemplate.servicelib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Delivery options chosen by a client when registering a listener
+ *
+ * @author Bertrand Martel
+ */
+public class SubscriptionOptions implements Parcelable {
+
+    /**
+     * every value is delivered (oldest values are dropped if client cant keep up)
+     */
+    public final static int DELIVERY_ALL = 0;
+
+    /**
+     * only the latest value is delivered : a pending value is replaced by a new one before being sent
+     */
+    public final static int DELIVERY_LATEST = 1;
+
+    /**
+     * notifications are delivered by workers reserved to interactive listeners (foreground UI)
+     */
+    public final static int PRIORITY_INTERACTIVE = 0;
+
+    /**
+     * notifications are delivered by background workers, interactive workers only help when they are idle
+     */
+    public final static int PRIORITY_BULK = 1;
+
+    /**
+     * lagging client : oldest pending value is dropped
+     */
+    public final static int SHED_DROP_OLDEST = 0;
+
+    /**
+     * lagging client : superseded pending values of the same property are dropped, then oldest pending value
+     */
+    public final static int SHED_LATEST = 1;
+
+    /**
+     * lagging client : listener is removed
+     */
+    public final static int SHED_DISCONNECT = 2;
+
+    /**
+     * upper bound of maxUnacknowledged : service keeps one version per notification not acknowledged
+     */
+    public final static int MAX_UNACKNOWLEDGED = 1024;
+
+    /**
+     * upper bound of min interval between two notifications in ms
+     */
+    private final static long MAX_INTERVAL_MS = Integer.MAX_VALUE;
+
+    private int deliveryPolicy = DELIVERY_ALL;
+
+    private int priority = PRIORITY_INTERACTIVE;
+
+    /**
+     * max time in ms a notification waits for a dispatch worker : a value not sent within this delay is dropped if a newer value of
+     * the same property is pending. Rate limit and debounce delays are not counted (0 : no deadline)
+     */
+    private int deadlineMs = 0;
+
+    /**
+     * max number of notifications per second (0 : unlimited)
+     */
+    private float maxRateHz = 0;
+
+    /**
+     * delay without new value before a notification is sent in ms (0 : no debounce)
+     */
+    private int debounceMs = 0;
+
+    /**
+     * receive versioned values (onPropertyVersion) and deltas (onPropertyDelta) instead of onPropertyChange
+     */
+    private boolean deltas = false;
+
+    /**
+     * max number of notifications not acknowledged before a full value is sent instead of a delta
+     */
+    private int maxUnacknowledged = 32;
+
+    /**
+     * keys of properties this listener is notified for
+     */
+    private String[] keys = null;
+
+    /**
+     * key prefixes of properties this listener is notified for
+     */
+    private String[] keyPrefixes = null;
+
+    /**
+     * all properties, default one included, are delivered with their key through onKeyChange
+     */
+    private boolean keyedDelivery = false;
+
+    /**
+     * number of callbacks service can send before client grants more credits (0 : no flow control)
+     */
+    private int initialCredits = 0;
+
+    /**
+     * number of values a client can lag behind (pending values and callbacks not acknowledged by a credit grant) before load is
+     * shed (0 : only channel capacity applies)
+     */
+    private int maxLag = 0;
+
+    private int shedPolicy = SHED_DROP_OLDEST;
+
+    /**
+     * all properties are delivered as UTF-8 PropertyValue through onTypedChange
+     */
+    private boolean typedValues = false;
+
+    /**
+     * recent changes with a version greater or equal to this one are replayed before live notifications (-1 : no replay from version)
+     */
+    private long replayFromVersion = -1;
+
+    /**
+     * number of most recent changes replayed before live notifications (0 : no limit when replaying from version, no replay otherwise)
+     */
+    private int replayLast = 0;
+
+    public SubscriptionOptions() {
+    }
+
+    /**
+     * @param options options to be copied
+     */
+    public SubscriptionOptions(SubscriptionOptions options) {
+        deliveryPolicy = options.deliveryPolicy;
+        priority = options.priority;
+        deadlineMs = options.deadlineMs;
+        maxRateHz = options.maxRateHz;
+        debounceMs = options.debounceMs;
+        deltas = options.deltas;
+        maxUnacknowledged = options.maxUnacknowledged;
+        keys = (options.keys != null) ? options.keys.clone() : null;
+        keyPrefixes = (options.keyPrefixes != null) ? options.keyPrefixes.clone() : null;
+        keyedDelivery = options.keyedDelivery;
+        initialCredits = options.initialCredits;
+        maxLag = options.maxLag;
+        shedPolicy = options.shedPolicy;
+        typedValues = options.typedValues;
+        replayFromVersion = options.replayFromVersion;
+        replayLast = options.replayLast;
+    }
+
+    protected SubscriptionOptions(Parcel in) {
+        deliveryPolicy = in.readInt();
+        maxRateHz = in.readFloat();
+        debounceMs = in.readInt();
+        deltas = in.readInt() != 0;
+        maxUnacknowledged = in.readInt();
+        keys = in.createStringArray();
+        keyPrefixes = in.createStringArray();
+        priority = in.readInt();
+        deadlineMs = in.readInt();
+        keyedDelivery = in.readInt() != 0;
+        replayFromVersion = in.readLong();
+        replayLast = in.readInt();
+        typedValues = in.readInt() != 0;
+        initialCredits = in.readInt();
+        maxLag = in.readInt();
+        shedPolicy = in.readInt();
+
+        //options are sent by a client : service must not size anything from an unchecked value
+        validate();
+    }
+
+    /**
+     * check options : negative delays, rates or counts and unknown policies are rejected, maxUnacknowledged is clamped to
+     * MAX_UNACKNOWLEDGED
+     *
+     * @throws IllegalArgumentException if an option is not valid
+     */
+    public void validate() {
+
+        if (deliveryPolicy != DELIVERY_ALL && deliveryPolicy != DELIVERY_LATEST)
+            throw new IllegalArgumentException("unknown delivery policy : " + deliveryPolicy);
+
+        if (priority != PRIORITY_INTERACTIVE && priority != PRIORITY_BULK)
+            throw new IllegalArgumentException("unknown priority : " + priority);
+
+        if (shedPolicy != SHED_DROP_OLDEST && shedPolicy != SHED_LATEST && shedPolicy != SHED_DISCONNECT)
+            throw new IllegalArgumentException("unknown shed policy : " + shedPolicy);
+
+        if (deadlineMs < 0 || debounceMs < 0 || maxUnacknowledged < 0 || initialCredits < 0 || maxLag < 0 || replayLast < 0)
+            throw new IllegalArgumentException("negative delay or count");
+
+        if (Float.isNaN(maxRateHz) || maxRateHz < 0)
+            throw new IllegalArgumentException("invalid max rate : " + maxRateHz);
+
+        if (replayFromVersion < -1)
+            throw new IllegalArgumentException("invalid replay version : " + replayFromVersion);
+
+        checkKeys(keys);
+        checkKeys(keyPrefixes);
+
+        maxUnacknowledged = Math.min(maxUnacknowledged, MAX_UNACKNOWLEDGED);
+    }
+
+    private static void checkKeys(String[] keys) {
+        if (keys == null)
+            return;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null)
+                throw new IllegalArgumentException("null key at index " + i);
+        }
+    }
+
+    public static final Creator<SubscriptionOptions> CREATOR = new Creator<SubscriptionOptions>() {
+        @Override
+        public SubscriptionOptions createFromParcel(Parcel in) {
+            return new SubscriptionOptions(in);
+        }
+
+        @Override
+        public SubscriptionOptions[] newArray(int size) {
+            return new SubscriptionOptions[size];
+        }
+    };
+
+    public int getDeliveryPolicy() {
+        return deliveryPolicy;
+    }
+
+    public void setDeliveryPolicy(int deliveryPolicy) {
+        this.deliveryPolicy = deliveryPolicy;
+    }
+
+    public float getMaxRateHz() {
+        return maxRateHz;
+    }
+
+    public void setMaxRateHz(float maxRateHz) {
+        this.maxRateHz = maxRateHz;
+    }
+
+    public int getDebounceMs() {
+        return debounceMs;
+    }
+
+    public void setDebounceMs(int debounceMs) {
+        this.debounceMs = debounceMs;
+    }
+
+    public boolean isDeltas() {
+        return deltas;
+    }
+
+    public void setDeltas(boolean deltas) {
+        this.deltas = deltas;
+    }
+
+    public int getMaxUnacknowledged() {
+        return maxUnacknowledged;
+    }
+
+    public void setMaxUnacknowledged(int maxUnacknowledged) {
+        this.maxUnacknowledged = maxUnacknowledged;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority PRIORITY_INTERACTIVE or PRIORITY_BULK
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * @param deadlineMs max age of a notification in ms (0 : no deadline)
+     */
+    public void setDeadlineMs(int deadlineMs) {
+        this.deadlineMs = deadlineMs;
+    }
+
+    public boolean isKeyedDelivery() {
+        return keyedDelivery;
+    }
+
+    /**
+     * @param keyedDelivery true to receive all properties, default one included, through onKeyChange (no delta, no snapshot)
+     */
+    public void setKeyedDelivery(boolean keyedDelivery) {
+        this.keyedDelivery = keyedDelivery;
+    }
+
+    public int getInitialCredits() {
+        return initialCredits;
+    }
+
+    /**
+     * @param initialCredits number of callbacks service can send before client grants more with grantCredits (0 : no flow control)
+     */
+    public void setInitialCredits(int initialCredits) {
+        this.initialCredits = initialCredits;
+    }
+
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    /**
+     * @param maxLag number of values client can lag behind before load is shed according to shed policy (0 : no shedding)
+     */
+    public void setMaxLag(int maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    public int getShedPolicy() {
+        return shedPolicy;
+    }
+
+    /**
+     * @param shedPolicy SHED_DROP_OLDEST, SHED_LATEST or SHED_DISCONNECT
+     */
+    public void setShedPolicy(int shedPolicy) {
+        this.shedPolicy = shedPolicy;
+    }
+
+    public boolean isTypedValues() {
+        return typedValues;
+    }
+
+    /**
+     * @param typedValues true to receive all properties through onTypedChange : values are marshalled as UTF-8 instead of UTF-16 and
+     *                    can be decoded in reusable buffers (no delta, no snapshot)
+     */
+    public void setTypedValues(boolean typedValues) {
+        this.typedValues = typedValues;
+    }
+
+    public long getReplayFromVersion() {
+        return replayFromVersion;
+    }
+
+    /**
+     * @param replayFromVersion replay retained changes with a version greater or equal to this one, typically last version seen + 1
+     *                          (-1 : no replay from version)
+     */
+    public void setReplayFromVersion(long replayFromVersion) {
+        this.replayFromVersion = replayFromVersion;
+    }
+
+    public int getReplayLast() {
+        return replayLast;
+    }
+
+    /**
+     * @param replayLast number of most recent retained changes to replay (0 : all changes from replay version)
+     */
+    public void setReplayLast(int replayLast) {
+        this.replayLast = replayLast;
+    }
+
+    /**
+     * @return true if recent changes are replayed when listener is registered
+     */
+    public boolean isReplay() {
+        return replayFromVersion >= 0 || replayLast > 0;
+    }
+
+    public String[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param keys keys of properties to be notified for (default property only if neither keys nor prefixes are set)
+     */
+    public void setKeys(String[] keys) {
+        this.keys = keys;
+    }
+
+    public String[] getKeyPrefixes() {
+        return keyPrefixes;
+    }
+
+    /**
+     * @param keyPrefixes key prefixes of properties to be notified for (empty prefix matches all properties)
+     */
+    public void setKeyPrefixes(String[] keyPrefixes) {
+        this.keyPrefixes = keyPrefixes;
+    }
+
+    /**
+     * @return min interval between two notifications in ms (0 : no limit)
+     */
+    public long getMinIntervalMs() {
+        if (maxRateHz <= 0)
+            return 0;
+        return Math.min(MAX_INTERVAL_MS, (long) Math.ceil(1000 / maxRateHz));
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(deliveryPolicy);
+        dest.writeFloat(maxRateHz);
+        dest.writeInt(debounceMs);
+        dest.writeInt(deltas ? 1 : 0);
+        dest.writeInt(maxUnacknowledged);
+        dest.writeStringArray(keys);
+        dest.writeStringArray(keyPrefixes);
+        dest.writeInt(priority);
+        dest.writeInt(deadlineMs);
+        dest.writeInt(keyedDelivery ? 1 : 0);
+        dest.writeLong(replayFromVersion);
+        dest.writeInt(replayLast);
+        dest.writeInt(typedValues ? 1 : 0);
+        dest.writeInt(initialCredits);
+        dest.writeInt(maxLag);
+        dest.writeInt(shedPolicy);
+    }
+}